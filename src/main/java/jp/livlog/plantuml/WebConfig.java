@@ -7,17 +7,22 @@ import org.springframework.context.annotation.Configuration;
 import jp.livlog.plantuml.servlet.AsciiCoderServlet;
 import jp.livlog.plantuml.servlet.AsciiServlet;
 import jp.livlog.plantuml.servlet.Base64Servlet;
+import jp.livlog.plantuml.servlet.BatchServlet;
+import jp.livlog.plantuml.servlet.BundleServlet;
 import jp.livlog.plantuml.servlet.CheckSyntaxServlet;
 import jp.livlog.plantuml.servlet.EpsServlet;
 import jp.livlog.plantuml.servlet.EpsTextServlet;
+import jp.livlog.plantuml.servlet.HashServlet;
 import jp.livlog.plantuml.servlet.ImgServlet;
 import jp.livlog.plantuml.servlet.LanguageServlet;
 import jp.livlog.plantuml.servlet.MapServlet;
 import jp.livlog.plantuml.servlet.MetadataServlet;
 import jp.livlog.plantuml.servlet.OldProxyServlet;
+import jp.livlog.plantuml.servlet.PagesServlet;
 import jp.livlog.plantuml.servlet.PdfServlet;
 import jp.livlog.plantuml.servlet.PlantUmlUIHelperServlet;
 import jp.livlog.plantuml.servlet.ProxyServlet;
+import jp.livlog.plantuml.servlet.StatsServlet;
 import jp.livlog.plantuml.servlet.SvgServlet;
 
 @Configuration
@@ -93,6 +98,27 @@ public class WebConfig {
     }
 
 
+    @Bean
+    public ServletRegistrationBean <BatchServlet> batchServlet() {
+
+        return new ServletRegistrationBean <>(new BatchServlet(), "/batch");
+    }
+
+
+    @Bean
+    public ServletRegistrationBean <BundleServlet> bundleServlet() {
+
+        return new ServletRegistrationBean <>(new BundleServlet(), "/bundle/*");
+    }
+
+
+    @Bean
+    public ServletRegistrationBean <PagesServlet> pagesServlet() {
+
+        return new ServletRegistrationBean <>(new PagesServlet(), "/pages/*");
+    }
+
+
     @Bean
     public ServletRegistrationBean <CheckSyntaxServlet> checkSyntaxServlet() {
 
@@ -126,4 +152,18 @@ public class WebConfig {
 
         return new ServletRegistrationBean <>(new MetadataServlet(), "/metadata/*");
     }
+
+
+    @Bean
+    public ServletRegistrationBean <HashServlet> hashServlet() {
+
+        return new ServletRegistrationBean <>(new HashServlet(), "/h/*", "/h");
+    }
+
+
+    @Bean
+    public ServletRegistrationBean <StatsServlet> statsServlet() {
+
+        return new ServletRegistrationBean <>(new StatsServlet(), "/stats");
+    }
 }
@@ -0,0 +1,345 @@
+/* ========================================================================
+ * PlantUML : a free UML diagram generator
+ * ========================================================================
+ *
+ * Project Info:  https://plantuml.com
+ *
+ * This file is part of PlantUML.
+ *
+ * PlantUML is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PlantUML distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ */
+package jp.livlog.plantuml.servlet;
+
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import jp.livlog.plantuml.servlet.utility.Configuration;
+import jp.livlog.plantuml.servlet.utility.Futures;
+import jp.livlog.plantuml.servlet.utility.ServiceUnavailableException;
+import jp.livlog.plantuml.servlet.utility.UmlExtractor;
+import net.sourceforge.plantuml.FileFormat;
+import net.sourceforge.plantuml.json.Json;
+import net.sourceforge.plantuml.json.JsonArray;
+import net.sourceforge.plantuml.json.JsonObject;
+import net.sourceforge.plantuml.json.JsonValue;
+import net.sourceforge.plantuml.json.ParseException;
+
+/**
+ * Batch servlet of the webapp.
+ * This servlet renders a JSON array of diagrams in parallel and streams the results back as newline delimited JSON
+ * objects in the order they finish.
+ *
+ * Each item of the request is an object with the textual diagram {@code source} or the {@code encoded} diagram, an
+ * optional {@code format} (see {@link BundleServlet}, {@code svg} by default), diagram index {@code idx} and
+ * {@code id}. Each result line holds the {@code item} position and {@code id} of its request item and either the
+ * {@code status}, {@code description}, {@code errors}, {@code type} and Base64 encoded {@code data} of the diagram
+ * or the {@code status} and {@code error} message of a failed item.
+ */
+public class BatchServlet extends HttpServlet {
+
+    /**
+     * Maximum number of items of a batch, set by PLANTUML_BATCH_MAX_ITEMS (10000 by default).
+     */
+    private static final long MAX_ITEMS = Configuration.getEnv("PLANTUML_BATCH_MAX_ITEMS", 10000);
+
+    /**
+     * Maximum size in bytes of a batch request body, set by PLANTUML_BATCH_MAX_SIZE (16 MiB by default).
+     * Checked before the body is parsed, since the whole body is parsed into memory.
+     */
+    private static final long MAX_SIZE  = Configuration.getEnv("PLANTUML_BATCH_MAX_SIZE", 16L * 1024 * 1024);
+
+    @Override
+    public void doPost(final HttpServletRequest request, final HttpServletResponse response) throws IOException {
+
+        if (request.getContentLengthLong() > BatchServlet.MAX_SIZE) {
+            response.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, "Request exceeds " + BatchServlet.MAX_SIZE + " bytes");
+            return;
+        }
+        final JsonArray items;
+        // bodies without Content-Length are cut off while they are read
+        try (var in = new LimitedReader(request.getReader(), BatchServlet.MAX_SIZE)) {
+            final var body = Json.parse(in);
+            if (!body.isArray()) {
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Expected a JSON array of diagrams");
+                return;
+            }
+            items = body.asArray();
+        } catch (final LimitExceededException e) {
+            response.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, e.getMessage());
+            return;
+        } catch (final ParseException e) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid JSON: " + e.getMessage());
+            return;
+        }
+        if (items.size() > BatchServlet.MAX_ITEMS) {
+            response.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, "Too many diagrams: " + items.size());
+            return;
+        }
+
+        response.addHeader("Access-Control-Allow-Origin", "*");
+        response.setContentType("application/x-ndjson;charset=UTF-8");
+        final var out = response.getWriter();
+        final var done = new LinkedBlockingQueue <JsonObject>();
+        var next = 0;
+        var pending = 0;
+        while (next < items.size() || pending > 0) {
+            // keep at most PARALLELISM items in the render pool; the results are written by this thread only
+            while (next < items.size() && pending < RenderCoordinator.PARALLELISM) {
+                BatchServlet.render(next, items.get(next)).thenAccept(done::add);
+                next++;
+                pending++;
+            }
+            final JsonObject result;
+            try {
+                result = done.take();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for a diagram");
+            }
+            pending--;
+            out.write(result.toString());
+            out.write('\n');
+            out.flush();
+            if (out.checkError()) {
+                // Browser has closed the connection, stop submitting renders
+                return;
+            }
+        }
+    }
+
+
+    /**
+     * Render an item of a batch.
+     *
+     * @param item position of the item in the batch
+     * @param value request item
+     *
+     * @return result line of the item; never fails, failures including those of producing the result line are
+     *         reported by the result itself
+     */
+    private static CompletableFuture <JsonObject> render(final int item, final JsonValue value) {
+
+        if (!value.isObject()) {
+            return BatchServlet.reject(BatchServlet.identify(item, null), "Expected a JSON object");
+        }
+        final var spec = value.asObject();
+        final var result = BatchServlet.identify(item, spec);
+        final String variant;
+        final int idx;
+        final String uml;
+        try {
+            variant = spec.getString("format", "svg").toLowerCase();
+            idx = spec.getInt("idx", 0);
+            if (spec.get("source") != null) {
+                uml = spec.get("source").asString();
+            } else if (spec.get("encoded") != null) {
+                uml = UmlExtractor.getUmlSource(spec.get("encoded").asString());
+            } else {
+                return BatchServlet.reject(result, "Missing source or encoded diagram");
+            }
+        } catch (final RuntimeException e) {
+            // wrong JSON types, malformed % escapes of the encoded diagram, ...
+            return BatchServlet.reject(result, "Invalid item: " + e.getMessage());
+        }
+        final var fmt = BundleServlet.VARIANTS.get(variant);
+        if (fmt == null) {
+            return BatchServlet.reject(result, "Unsupported format: " + variant);
+        }
+        if (idx < 0) {
+            return BatchServlet.reject(result, "Invalid diagram index: " + idx);
+        }
+        CompletableFuture <RenderedDiagram> rendering;
+        try {
+            rendering = RenderCoordinator.renderAsync(RenderKey.of(uml, idx, fmt), () -> ParsedDiagram.render(uml, idx, fmt), 0);
+        } catch (final RuntimeException e) {
+            rendering = CompletableFuture.failedFuture(e);
+        }
+        // the result line must always be produced, otherwise the request thread waits for it forever; a failure
+        // while filling the result line leaves it partly filled, so the fallback starts from a fresh one
+        return rendering
+                .handle((rendered, failure) -> BatchServlet.complete(result, variant, fmt, rendered, failure))
+                .exceptionally(failure -> BatchServlet.failure(
+                        BatchServlet.identify(item, spec),
+                        HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+                        String.valueOf(Futures.unwrap(failure).getMessage())));
+    }
+
+
+    /**
+     * Fill the result line of a rendered item.
+     *
+     * @param result result line holding the item position and id
+     * @param variant requested format
+     * @param fmt file format the diagram was rendered in
+     * @param rendered rendered diagram or failure response; `null` if the render failed
+     * @param failure render failure; `null` if the diagram was rendered
+     *
+     * @return result line
+     */
+    private static JsonObject complete(
+            final JsonObject result,
+            final String variant,
+            final FileFormat fmt,
+            final RenderedDiagram rendered,
+            final Throwable failure) {
+
+        if (failure != null) {
+            final var cause = Futures.unwrap(failure);
+            if (cause instanceof final ServiceUnavailableException e) {
+                result.add("retryAfter", e.getRetryAfter());
+                return BatchServlet.failure(result, HttpServletResponse.SC_SERVICE_UNAVAILABLE, e.getMessage());
+            }
+            cause.printStackTrace();
+            return BatchServlet.failure(result, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, String.valueOf(cause.getMessage()));
+        }
+        if (rendered.isFailure()) {
+            final var message = rendered.getErrorMessage() == null ? "No such diagram" : rendered.getErrorMessage();
+            return BatchServlet.failure(result, rendered.getStatus(), message);
+        }
+        try {
+            final var payload = DiagramResponse.toJson(variant, fmt, rendered);
+            result.add("status", rendered.getStatus());
+            result.add("description", rendered.getDescription());
+            result.add("errors", DiagramResponse.toJson(rendered.getErrors()));
+            result.add("type", payload.get("type"));
+            result.add("data", payload.get("data"));
+            return result;
+        } catch (final IOException e) {
+            e.printStackTrace();
+            return BatchServlet.failure(result, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, String.valueOf(e.getMessage()));
+        }
+    }
+
+
+    /**
+     * Create the result line of an item holding only its position and id.
+     *
+     * @param item position of the item in the batch
+     * @param spec request item; `null` if it is no JSON object
+     *
+     * @return result line
+     */
+    private static JsonObject identify(final int item, final JsonObject spec) {
+
+        final var result = new JsonObject();
+        result.add("item", item);
+        if (spec != null && spec.get("id") != null) {
+            result.add("id", spec.get("id"));
+        }
+        return result;
+    }
+
+
+    /**
+     * Reject an invalid item without rendering it.
+     *
+     * @param result result line holding the item position and id
+     * @param message error message
+     *
+     * @return completed result line
+     */
+    private static CompletableFuture <JsonObject> reject(final JsonObject result, final String message) {
+
+        return CompletableFuture.completedFuture(BatchServlet.failure(result, HttpServletResponse.SC_BAD_REQUEST, message));
+    }
+
+
+    /**
+     * Fill the result line of a failed item.
+     *
+     * @param result result line holding the item position and id
+     * @param status HTTP status the item would have been answered with
+     * @param message error message
+     *
+     * @return result line
+     */
+    private static JsonObject failure(final JsonObject result, final int status, final String message) {
+
+        result.set("status", status);
+        result.set("error", message);
+        return result;
+    }
+
+
+    /**
+     * Signals a request body exceeding {@link BatchServlet#MAX_SIZE}.
+     */
+    private static final class LimitExceededException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        LimitExceededException(final String message) {
+
+            super(message);
+        }
+    }
+
+    /**
+     * Reader failing once more than a maximum number of characters was read.
+     * Characters are counted instead of bytes, which never counts more than the bytes of the body.
+     */
+    private static final class LimitedReader extends FilterReader {
+
+        private final long limit;
+
+        private long       count;
+
+        LimitedReader(final Reader in, final long limit) {
+
+            super(in);
+            this.limit = limit;
+        }
+
+
+        @Override
+        public int read() throws IOException {
+
+            final var c = super.read();
+            if (c >= 0) {
+                this.count(1);
+            }
+            return c;
+        }
+
+
+        @Override
+        public int read(final char[] buffer, final int offset, final int length) throws IOException {
+
+            final var read = super.read(buffer, offset, length);
+            if (read > 0) {
+                this.count(read);
+            }
+            return read;
+        }
+
+
+        private void count(final int read) throws LimitExceededException {
+
+            this.count += read;
+            if (this.count > this.limit) {
+                throw new LimitExceededException("Request exceeds " + this.limit + " bytes");
+            }
+        }
+    }
+
+}
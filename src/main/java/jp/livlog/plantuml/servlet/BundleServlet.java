@@ -0,0 +1,121 @@
+/* ========================================================================
+ * PlantUML : a free UML diagram generator
+ * ========================================================================
+ *
+ * Project Info:  https://plantuml.com
+ *
+ * This file is part of PlantUML.
+ *
+ * PlantUML is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PlantUML distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ */
+package jp.livlog.plantuml.servlet;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import javax.imageio.IIOException;
+
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import jp.livlog.plantuml.servlet.utility.UmlExtractor;
+import jp.livlog.plantuml.servlet.utility.UrlDataExtractor;
+import net.sourceforge.plantuml.FileFormat;
+
+/**
+ * Bundle servlet of the webapp.
+ * This servlet produces several formats of the diagram, e.g. SVG, PNG and image map, in a single JSON response.
+ */
+public class BundleServlet extends HttpServlet {
+
+    /**
+     * Formats requested if the request has no {@code formats} parameter.
+     */
+    private static final String                   DEFAULT_FORMATS = "svg,png,map";
+
+    /**
+     * Supported response variants and the file formats they are rendered in.
+     */
+    static final Map <String, FileFormat>         VARIANTS        = Map.of(
+            "png", FileFormat.PNG,
+            "svg", FileFormat.SVG,
+            "txt", FileFormat.UTXT,
+            "eps", FileFormat.EPS,
+            "epstext", FileFormat.EPS_TEXT,
+            "map", FileFormat.PNG);
+
+    @Override
+    public void doGet(final HttpServletRequest request, final HttpServletResponse response) throws IOException, ServletException {
+
+        final var url = request.getRequestURI();
+        final var encoded = UrlDataExtractor.getEncodedDiagram(url, "");
+        final var idx = UrlDataExtractor.getIndex(url, 0);
+
+        final var formats = request.getParameter("formats") == null ? BundleServlet.DEFAULT_FORMATS : request.getParameter("formats");
+        final var variants = new LinkedHashMap <String, FileFormat>();
+        for (final String name : formats.toLowerCase().split(",")) {
+            final var fmt = BundleServlet.VARIANTS.get(name.trim());
+            if (fmt == null) {
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Unsupported format: " + name.trim());
+                return;
+            }
+            variants.put(name.trim(), fmt);
+        }
+
+        // answer revalidations before decoding or parsing anything
+        final var dr = new DiagramResponse(response, this.getOutputFormat(), request);
+        if (dr.sendNotModified(DiagramResponse.etag(encoded, idx, "bundle:" + String.join(",", variants.keySet())))) {
+            return;
+        }
+
+        // build the UML source from the compressed request parameter
+        final String uml;
+        try {
+            uml = UmlExtractor.getUmlSource(encoded);
+        } catch (final Exception e) {
+            e.printStackTrace();
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Bad Request");
+            return;
+        }
+
+        // generate the response
+        if (DiagramResponse.isAsync(request)) {
+            dr.sendBundle(CompletableFuture.completedFuture(uml), idx, variants, request.startAsync());
+            return;
+        }
+        try {
+            dr.sendBundle(uml, idx, variants);
+        } catch (final IIOException e) {
+            // Browser has closed the connection, do nothing
+        }
+    }
+
+
+    /**
+     * Gives the wished output format of the diagram.
+     * This value is used by the DiagramResponse class.
+     *
+     * @return the format for bundle responses
+     */
+    public FileFormat getOutputFormat() {
+
+        return FileFormat.UTXT;
+    }
+
+}
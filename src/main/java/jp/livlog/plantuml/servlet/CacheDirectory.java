@@ -0,0 +1,140 @@
+/* ========================================================================
+ * PlantUML : a free UML diagram generator
+ * ========================================================================
+ *
+ * Project Info:  https://plantuml.com
+ *
+ * This file is part of PlantUML.
+ *
+ * PlantUML is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PlantUML distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ */
+package jp.livlog.plantuml.servlet;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * File handling shared by the stores persisting their entries in a directory, i.e. the disk render cache and the
+ * published source store.
+ * Every store writes its entries to temporary files ending in its own extension plus {@code .tmp}, so stores
+ * sharing a directory never delete the unfinished writes of each other.
+ */
+final class CacheDirectory {
+
+    private static final String TMP = ".tmp";
+
+    private CacheDirectory() {
+
+    }
+
+
+    /**
+     * Get and create the directory set by an environment variable.
+     *
+     * @param variable name of the environment variable
+     *
+     * @return directory; `null` if {@code variable} is not set or the directory is not usable
+     */
+    static Path get(final String variable) {
+
+        final var dir = System.getenv(variable);
+        if (dir == null || dir.isEmpty()) {
+            return null;
+        }
+        try {
+            return Files.createDirectories(Paths.get(dir));
+        } catch (final IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+
+    /**
+     * List the entries left by a previous run, least recently modified first, and remove leftovers of its
+     * interrupted writes.
+     *
+     * @param directory store directory
+     * @param extension file extension of the entries of the store
+     *
+     * @return entry files; empty if the directory cannot be listed
+     */
+    static List <Path> load(final Path directory, final String extension) {
+
+        final List <Path> files;
+        try (var list = Files.list(directory)) {
+            files = list.collect(Collectors.toList());
+        } catch (final IOException e) {
+            e.printStackTrace();
+            return new ArrayList <>();
+        }
+        final List <Path> entries = new ArrayList <>();
+        for (final Path file : files) {
+            final var name = file.getFileName().toString();
+            if (name.endsWith(extension + CacheDirectory.TMP)) {
+                CacheDirectory.delete(directory, name);
+            } else if (name.endsWith(extension)) {
+                entries.add(file);
+            }
+        }
+        entries.sort(Comparator.comparingLong(CacheDirectory::getLastModified));
+        return entries;
+    }
+
+
+    /**
+     * Create the temporary file an entry is written to before it is moved into place.
+     *
+     * @param directory store directory
+     * @param name file name of the entry
+     * @param extension file extension of the entries of the store
+     *
+     * @return empty temporary file
+     *
+     * @throws IOException if an input or output exception occurred
+     */
+    static Path createTempFile(final Path directory, final String name, final String extension) throws IOException {
+
+        return Files.createTempFile(directory, name, extension + CacheDirectory.TMP);
+    }
+
+
+    static void delete(final Path directory, final String name) {
+
+        try {
+            Files.deleteIfExists(directory.resolve(name));
+        } catch (final IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+
+    private static long getLastModified(final Path file) {
+
+        try {
+            return Files.getLastModifiedTime(file).toMillis();
+        } catch (final IOException e) {
+            return 0;
+        }
+    }
+
+}
@@ -37,7 +37,7 @@ import net.sourceforge.plantuml.FileFormat;
 
 /**
  * Check servlet of the webapp.
- * This servlet checks the syntax of the diagram and send a report in TEXT format.
+ * This servlet checks the syntax of the diagram and send a report in TEXT format or as JSON object.
  */
 public class CheckSyntaxServlet extends HttpServlet {
 
@@ -0,0 +1,313 @@
+/* ========================================================================
+ * PlantUML : a free UML diagram generator
+ * ========================================================================
+ *
+ * Project Info:  https://plantuml.com
+ *
+ * This file is part of PlantUML.
+ *
+ * PlantUML is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PlantUML distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ */
+package jp.livlog.plantuml.servlet;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+
+import net.sourceforge.plantuml.json.JsonObject;
+
+/**
+ * Immutable snapshot of the PlantUML configuration loaded from PLANTUML_PROPERTY_FILE and PLANTUML_CONFIG_FILE.
+ * The current snapshot is swapped atomically whenever one of the files changes, so a render always sees one
+ * consistent configuration. Its fingerprint keys parsed and rendered diagrams, so a change only invalidates
+ * diagrams rendered with the previous configuration.
+ */
+public final class ConfigSnapshot {
+
+    private static final AtomicReference <ConfigSnapshot> CURRENT  = new AtomicReference <>();
+
+    private static final AtomicBoolean                    WATCHING = new AtomicBoolean();
+
+    /**
+     * Time in milliseconds a reload waits after the last file event, so the writer can finish and all events of
+     * one change result in a single reload.
+     */
+    private static final long                             DEBOUNCE = 100;
+
+    /**
+     * Runs the reloads triggered by file events.
+     */
+    private static final ScheduledThreadPoolExecutor      RELOADER = ConfigSnapshot.createReloader();
+
+    /**
+     * System properties set from PLANTUML_PROPERTY_FILE and their values before; `null` if they were not set.
+     * Properties removed from the file get their previous value back. Guarded by the class lock.
+     */
+    private static final Map <String, String>             ORIGINAL = new HashMap <>();
+
+    private static final AtomicLong                       reloads  = new AtomicLong();
+
+    /**
+     * PLANTUML_CONFIG_FILE lines inserted in front of every diagram.
+     */
+    private final List <String>                           config;
+
+    /**
+     * Fingerprint of the security profile, PLANTUML_PROPERTY_FILE and PLANTUML_CONFIG_FILE content.
+     */
+    private final String                                  fingerprint;
+
+    private ConfigSnapshot(final List <String> config, final String fingerprint) {
+
+        this.config = config;
+        this.fingerprint = fingerprint;
+    }
+
+
+    /**
+     * Get the current configuration, loading it on first use.
+     *
+     * @return current configuration snapshot
+     */
+    public static ConfigSnapshot get() {
+
+        final var snapshot = ConfigSnapshot.CURRENT.get();
+        if (snapshot != null) {
+            return snapshot;
+        }
+        // sets the security profile first, which is part of the fingerprint
+        DiagramResponse.init();
+        return ConfigSnapshot.CURRENT.get();
+    }
+
+
+    /**
+     * Load the configuration files and make them the current configuration if their content changed.
+     * Diagrams parsed or rendered with the previous configuration are purged from the in-memory caches.
+     */
+    public static synchronized void reload() {
+
+        final var propertyFile = ConfigSnapshot.read("PLANTUML_PROPERTY_FILE");
+        final var configFile = ConfigSnapshot.read("PLANTUML_CONFIG_FILE");
+        final var previous = ConfigSnapshot.CURRENT.get();
+        if (previous != null
+                && ((propertyFile == null && System.getenv("PLANTUML_PROPERTY_FILE") != null)
+                        || (configFile == null && System.getenv("PLANTUML_CONFIG_FILE") != null))) {
+            // a file is being replaced right now; keep the current configuration until it is back
+            return;
+        }
+        final var config = configFile == null ? List. <String> of() : configFile.lines().toList();
+        var content = System.getProperty("PLANTUML_SECURITY_PROFILE") + "\n" + String.join("\n", config);
+        if (propertyFile != null) {
+            content += "\n" + propertyFile;
+        }
+        final var fingerprint = RenderKey.hash(content);
+        if (previous != null && previous.fingerprint.equals(fingerprint)) {
+            return;
+        }
+        ConfigSnapshot.apply(propertyFile);
+        ConfigSnapshot.CURRENT.set(new ConfigSnapshot(config, fingerprint));
+        if (previous != null) {
+            ConfigSnapshot.reloads.incrementAndGet();
+            RenderCoordinator.purge(previous.fingerprint);
+            ParsedDiagram.purge(previous.fingerprint);
+        }
+    }
+
+
+    /**
+     * Watch the configuration files and reload them on change.
+     * The directories of the files are watched, since editors and e.g. Kubernetes config maps replace files
+     * instead of modifying them.
+     */
+    public static void watch() {
+
+        if (!ConfigSnapshot.WATCHING.compareAndSet(false, true)) {
+            return;
+        }
+        final var directories = Stream.of(System.getenv("PLANTUML_PROPERTY_FILE"), System.getenv("PLANTUML_CONFIG_FILE"))
+                .filter(file -> file != null && !file.isEmpty())
+                .map(file -> Paths.get(file).toAbsolutePath().getParent())
+                .distinct()
+                .toList();
+        if (directories.isEmpty()) {
+            return;
+        }
+        try {
+            final var watchService = FileSystems.getDefault().newWatchService();
+            for (final Path directory : directories) {
+                directory.register(
+                        watchService,
+                        StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY,
+                        StandardWatchEventKinds.ENTRY_DELETE);
+            }
+            final var thread = new Thread(() -> {
+                ScheduledFuture <?> pending = null;
+                while (true) {
+                    try {
+                        final var key = watchService.take();
+                        key.pollEvents();
+                        key.reset();
+                        // postpone the reload until no event arrived for DEBOUNCE milliseconds
+                        if (pending != null) {
+                            pending.cancel(false);
+                        }
+                        pending = ConfigSnapshot.RELOADER.schedule(ConfigSnapshot::reloadSafely, ConfigSnapshot.DEBOUNCE, TimeUnit.MILLISECONDS);
+                    } catch (final InterruptedException e) {
+                        return;
+                    } catch (final RuntimeException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }, "plantuml-config-watcher");
+            thread.setDaemon(true);
+            thread.start();
+        } catch (final IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+
+    /**
+     * Apply PLANTUML_PROPERTY_FILE to the system properties.
+     * Properties which are no longer in the file are reset to their value before the file set them.
+     *
+     * @param propertyFile property file content; `null` if there is none
+     */
+    private static void apply(final String propertyFile) {
+
+        final var properties = new Properties();
+        if (propertyFile != null) {
+            try {
+                properties.load(new StringReader(propertyFile));
+            } catch (final IOException e) {
+                e.printStackTrace();
+            }
+        }
+        final var removed = ConfigSnapshot.ORIGINAL.keySet().stream().filter(name -> !properties.containsKey(name)).toList();
+        for (final String name : removed) {
+            final var original = ConfigSnapshot.ORIGINAL.remove(name);
+            if (original == null) {
+                System.clearProperty(name);
+            } else {
+                System.setProperty(name, original);
+            }
+        }
+        for (final String name : properties.stringPropertyNames()) {
+            if (!ConfigSnapshot.ORIGINAL.containsKey(name)) {
+                ConfigSnapshot.ORIGINAL.put(name, System.getProperty(name));
+            }
+            System.setProperty(name, properties.getProperty(name));
+        }
+    }
+
+
+    /**
+     * Reload the configuration, logging instead of throwing failures, so a failed reload does not end the
+     * reloads of later changes.
+     */
+    private static void reloadSafely() {
+
+        try {
+            ConfigSnapshot.reload();
+        } catch (final RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+
+    /**
+     * Create the thread running the reloads.
+     *
+     * @return reloader
+     */
+    private static ScheduledThreadPoolExecutor createReloader() {
+
+        final var reloader = new ScheduledThreadPoolExecutor(1, runnable -> {
+            final var thread = new Thread(runnable, "plantuml-config-reloader");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reloader.setRemoveOnCancelPolicy(true);
+        return reloader;
+    }
+
+
+    /**
+     * Get configuration statistics.
+     *
+     * @return statistics as JSON object
+     */
+    public static JsonObject getStatistics() {
+
+        final var stats = new JsonObject();
+        stats.add("fingerprint", ConfigSnapshot.get().fingerprint);
+        stats.add("reloads", ConfigSnapshot.reloads.get());
+        return stats;
+    }
+
+
+    /**
+     * Read a configuration file.
+     *
+     * @param name name of the environment variable containing the file name
+     *
+     * @return file content; `null` if the variable is not set or the file could not be read
+     */
+    private static String read(final String name) {
+
+        final var file = System.getenv(name);
+        if (file == null) {
+            return null;
+        }
+        try {
+            return Files.readString(Paths.get(file), StandardCharsets.UTF_8);
+        } catch (final IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+
+    public List <String> getConfig() {
+
+        return this.config;
+    }
+
+
+    public String getFingerprint() {
+
+        return this.fingerprint;
+    }
+
+}
@@ -23,28 +23,34 @@
  */
 package jp.livlog.plantuml.servlet;
 
-import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
-import java.io.FileReader;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collection;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.EnumMap;
+import java.util.EnumSet;
 import java.util.List;
-
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import jakarta.servlet.AsyncContext;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
-import net.sourceforge.plantuml.BlockUml;
-import net.sourceforge.plantuml.ErrorUml;
+import jp.livlog.plantuml.servlet.utility.Configuration;
+import jp.livlog.plantuml.servlet.utility.Futures;
+import jp.livlog.plantuml.servlet.utility.Gzip;
+import jp.livlog.plantuml.servlet.utility.ServiceUnavailableException;
 import net.sourceforge.plantuml.FileFormat;
-import net.sourceforge.plantuml.FileFormatOption;
-import net.sourceforge.plantuml.NullOutputStream;
-import net.sourceforge.plantuml.SourceStringReader;
-import net.sourceforge.plantuml.StringUtils;
-import net.sourceforge.plantuml.error.PSystemError;
-import net.sourceforge.plantuml.preproc.Defines;
+import net.sourceforge.plantuml.json.JsonArray;
+import net.sourceforge.plantuml.json.JsonObject;
 import net.sourceforge.plantuml.security.SecurityProfile;
-import net.sourceforge.plantuml.security.SecurityUtils;
-import net.sourceforge.plantuml.utils.Base64Coder;
 import net.sourceforge.plantuml.version.Version;
 
 /**
@@ -53,33 +59,39 @@ import net.sourceforge.plantuml.version.Version;
  */
 public class DiagramResponse {
 
-    private static class BlockSelection {
-
-        private final BlockUml block;
-
-        private final int      systemIdx;
-
-        BlockSelection(final BlockUml blk, final int idx) {
+    /**
+     * Sends a rendered diagram.
+     *
+     * @param <T> rendered diagram(s)
+     */
+    @FunctionalInterface
+    private interface RenderedSender <T> {
 
-            this.block = blk;
-            this.systemIdx = idx;
-        }
+        void send(T rendered) throws IOException;
     }
 
     /**
      * X-Powered-By http header value included in every response by default.
      */
-    private static final String        POWERED_BY  = "PlantUML Version " + Version.versionString();
+    private static final String        POWERED_BY         = "PlantUML Version " + Version.versionString();
 
     /**
-     * PLANTUML_CONFIG_FILE content.
+     * Cache/flag to ensure that the `init()` method is called only once.
      */
-    private static final List <String> CONFIG      = new ArrayList <>();
+    private static boolean             initialized        = false;
 
     /**
-     * Cache/flag to ensure that the `init()` method is called only once.
+     * Release the container thread while diagrams are rendered.
      */
-    private static boolean             initialized = false;
+    private static final boolean       ASYNC              = Configuration.getEnv("PLANTUML_ASYNC_RENDERING", false);
+
+    /**
+     * Minimum size in bytes of a diagram stored on disk to be sent with sendfile (48 KiB by default, like
+     * Tomcat's default servlet); smaller diagrams are cheaper to copy.
+     */
+    private static final long          SENDFILE_THRESHOLD = Configuration.getEnv("PLANTUML_SENDFILE_THRESHOLD", 48L * 1024);
+
+    private static final byte[]        BASE64_PREFIX      = "data:image/png;base64,".getBytes(StandardCharsets.US_ASCII);
 
     static {
         DiagramResponse.init();
@@ -100,6 +112,16 @@ public class DiagramResponse {
      */
     private final HttpServletResponse response;
 
+    /**
+     * Entity tag derived from the request itself; if `null` the entity tag of the parsed diagram is used.
+     */
+    private String                    etag;
+
+    /**
+     * Is the gzip compressed variant of the diagram sent? Its entity tag carries {@link Gzip#ETAG_SUFFIX}.
+     */
+    private boolean                   gzip;
+
     /**
      * Create new diagram response instance.
      *
@@ -118,7 +140,7 @@ public class DiagramResponse {
     /**
      * Initialize PlantUML configurations and properties as well as loading the PlantUML config file.
      */
-    public static void init() {
+    public static synchronized void init() {
 
         if (DiagramResponse.initialized) {
             return;
@@ -130,22 +152,85 @@ public class DiagramResponse {
         if (System.getenv("PLANTUML_SECURITY_PROFILE") != null) {
             System.setProperty("PLANTUML_SECURITY_PROFILE", System.getenv("PLANTUML_SECURITY_PROFILE"));
         }
-        // load properties from file
-        if (System.getenv("PLANTUML_PROPERTY_FILE") != null) {
-            try (var propertyFileReader = new FileReader(System.getenv("PLANTUML_PROPERTY_FILE"))) {
-                System.getProperties().load(propertyFileReader);
-            } catch (final IOException e) {
-                e.printStackTrace();
-            }
+        // load properties and PlantUML config file and reload them on change
+        ConfigSnapshot.reload();
+        ConfigSnapshot.watch();
+    }
+
+
+    /**
+     * Compute the entity tag of a diagram response from its request without parsing the diagram.
+     * The tag covers everything the rendered diagram depends on: the source, the diagram index, the response
+     * variant, the PlantUML version and the server configuration.
+     *
+     * @param source encoded or textual UML diagram(s) source as sent by the client
+     * @param idx diagram index
+     * @param variant response variant, e.g. the file format name
+     *
+     * @return entity tag
+     */
+    public static String etag(final String source, final int idx, final String variant) {
+
+        return RenderKey.hash(
+                Version.etag() + "\n" + ConfigSnapshot.get().getFingerprint() + "\n" + variant + "\n" + idx + "\n" + source);
+    }
+
+
+    /**
+     * Use an entity tag computed with {@link #etag} for this response and answer the request with 304 Not Modified
+     * right away if the client's copy is still valid.
+     * The tag is only ever sent with cacheable diagrams, so a matching tag proves the diagram is cacheable
+     * without parsing it.
+     *
+     * @param tag entity tag of this response
+     *
+     * @return true if 304 Not Modified was sent; otherwise false
+     *
+     * @throws IOException if an input or output exception occurred
+     */
+    public boolean sendNotModified(final String tag) throws IOException {
+
+        this.etag = tag;
+        // whether the diagram has a compressed variant is only known after rendering, but the client only holds
+        // its entity tag if it has one
+        final var compressible = Gzip.isCompressible(this.getRenderFormat());
+        this.gzip = compressible && Gzip.isAccepted(this.request) && this.notModified(tag + Gzip.ETAG_SUFFIX, DiagramResponse.getLastModified());
+        if (!this.gzip && !this.notModified(tag, DiagramResponse.getLastModified())) {
+            return false;
         }
-        // load PlantUML config file
-        if (System.getenv("PLANTUML_CONFIG_FILE") != null) {
-            try (var br = new BufferedReader(new FileReader(System.getenv("PLANTUML_CONFIG_FILE")))) {
-                br.lines().forEach(DiagramResponse.CONFIG::add);
-            } catch (final IOException e) {
-                e.printStackTrace();
-            }
+        this.response.addHeader("Access-Control-Allow-Origin", "*");
+        if (compressible) {
+            this.response.addHeader("Vary", "Accept-Encoding");
         }
+        this.addCacheHeaders(this.gzip ? tag + Gzip.ETAG_SUFFIX : tag, DiagramResponse.getLastModified());
+        DiagramResponse.addHeaders(this.response);
+        this.response.sendError(HttpServletResponse.SC_NOT_MODIFIED);
+        return true;
+    }
+
+
+    /**
+     * Get the last modification time of every diagram, which only depends on the PlantUML version
+     * (same as {@code BlockUml.lastModified()}).
+     *
+     * @return last modification time in milliseconds since epoch
+     */
+    private static long getLastModified() {
+
+        return Version.compileTime() / 1000L / 60 * 1000L * 60 + Version.beta() * 1000L * 3600;
+    }
+
+
+    /**
+     * Should the request be served asynchronously?
+     *
+     * @param req http request
+     *
+     * @return true if asynchronous rendering is enabled and supported by the request; otherwise false
+     */
+    public static boolean isAsync(final HttpServletRequest req) {
+
+        return DiagramResponse.ASYNC && req.isAsyncSupported();
     }
 
 
@@ -159,140 +244,328 @@ public class DiagramResponse {
      */
     public void sendDiagram(final String uml, final int idx) throws IOException {
 
-        this.response.addHeader("Access-Control-Allow-Origin", "*");
-        this.response.setContentType(this.getContentType());
-
-        if (idx < 0) {
-            this.response.sendError(HttpServletResponse.SC_BAD_REQUEST, String.format("Invalid diagram index: {0}", idx));
+        if (!this.prepare(idx)) {
             return;
         }
-        final var reader = this.getSourceStringReader(uml);
-        if (reader == null) {
-            this.response.sendError(HttpServletResponse.SC_BAD_REQUEST, "No UML diagram found");
+        // Base64 data URIs are encoded on the fly from the PNG diagram, which is shared with /png
+        final var fmt = this.getRenderFormat();
+        final RenderedDiagram rendered;
+        try {
+            rendered = RenderCoordinator.render(
+                    this.getRenderKey(uml, idx, fmt),
+                    () -> ParsedDiagram.render(uml, idx, fmt),
+                    this.getDeadline());
+        } catch (final ServiceUnavailableException e) {
+            this.sendServiceUnavailable(e);
             return;
         }
-
         if (this.format == FileFormat.BASE64) {
-            byte[] imageBytes;
-            try (var outstream = new ByteArrayOutputStream()) {
-                reader.outputImage(outstream, idx, new FileFormatOption(FileFormat.PNG));
-                imageBytes = outstream.toByteArray();
-            }
-            final var base64 = Base64Coder.encodeLines(imageBytes).replaceAll("\\s", "");
-            final var encodedBytes = "data:image/png;base64," + base64;
-            this.response.getOutputStream().write(encodedBytes.getBytes());
-            return;
+            this.sendBase64(rendered);
+        } else {
+            this.sendRendered(rendered);
         }
+    }
 
-        final var blockSelection = this.getOutputBlockSelection(reader, idx);
-        if (blockSelection == null) {
-            this.response.sendError(HttpServletResponse.SC_BAD_REQUEST);
-            return;
-        }
 
-        if (this.notModified(blockSelection.block)) {
-            this.addHeaderForCache(blockSelection.block);
-            this.response.sendError(HttpServletResponse.SC_NOT_MODIFIED);
+    /**
+     * Render and send a specific uml diagram asynchronously.
+     * The container thread is released while the source is loaded and the diagram is rendered;
+     * the response is sent and {@code asyncContext} completed on a container thread once the work is done.
+     *
+     * @param uml textual UML diagram(s) source, possibly still being loaded
+     * @param idx diagram index of {@code uml} to send
+     * @param asyncContext started asynchronous context of the request
+     *
+     * @throws IOException if an input or output exception occurred
+     */
+    public void sendDiagram(final CompletableFuture <String> uml, final int idx, final AsyncContext asyncContext) throws IOException {
+
+        asyncContext.setTimeout(0); // bounded by the render queue wait instead
+        if (!this.prepare(idx)) {
+            asyncContext.complete();
             return;
         }
-        if (StringUtils.isDiagramCacheable(uml)) {
-            this.addHeaderForCache(blockSelection.block);
-        }
-        final var diagram = blockSelection.block.getDiagram();
-        if (diagram instanceof PSystemError) {
-            this.response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
-        }
-        diagram.exportDiagram(this.response.getOutputStream(), blockSelection.systemIdx, new FileFormatOption(this.format));
+        final var fmt = this.getRenderFormat();
+        this.complete(asyncContext, uml.thenCompose(source -> RenderCoordinator.renderAsync(
+                this.getRenderKey(source, idx, fmt),
+                () -> ParsedDiagram.render(source, idx, fmt),
+                this.getDeadline())), this.format == FileFormat.BASE64 ? this::sendBase64 : this::sendRendered);
     }
 
 
-    private BlockSelection getOutputBlockSelection(final SourceStringReader reader, int numImage) {
+    /**
+     * Get the format the diagram is rendered in.
+     *
+     * @return response format; PNG for Base64 responses
+     */
+    private FileFormat getRenderFormat() {
 
-        if (numImage < 0) {
-            return null;
+        return this.format == FileFormat.BASE64 ? FileFormat.PNG : this.format;
+    }
+
+
+    /**
+     * Get the render deadline requested by the client with the X-PlantUML-Render-Deadline header.
+     * The client can only shorten the server-wide render deadline.
+     *
+     * @return deadline in milliseconds; {@code 0} if none was requested
+     */
+    private long getDeadline() {
+
+        final var deadline = this.request.getHeader("X-PlantUML-Render-Deadline");
+        if (deadline == null || !deadline.matches("^\\d{1,9}$")) {
+            return 0;
         }
+        return Long.parseLong(deadline);
+    }
 
-        final Collection <BlockUml> blocks = reader.getBlocks();
-        if (blocks.isEmpty()) {
-            return null;
+
+    /**
+     * Add the common headers and validate the diagram index.
+     *
+     * @param idx diagram index
+     *
+     * @return true if the diagram should be rendered; otherwise false and an error is already sent
+     *
+     * @throws IOException if an input or output exception occurred
+     */
+    private boolean prepare(final int idx) throws IOException {
+
+        this.response.addHeader("Access-Control-Allow-Origin", "*");
+        this.response.setContentType(this.getContentType());
+
+        if (idx < 0) {
+            this.response.sendError(HttpServletResponse.SC_BAD_REQUEST, String.format("Invalid diagram index: {0}", idx));
+            return false;
         }
+        return true;
+    }
 
-        for (final BlockUml b : blocks) {
-            final var system = b.getDiagram();
-            final var nbInSystem = system.getNbImages();
-            if (numImage < nbInSystem) {
-                return new BlockSelection(b, numImage);
+
+    /**
+     * Send the rendered diagram once it is available and complete the asynchronous request.
+     * The response is written on a container thread, never on the render worker completing the render, so
+     * slow clients cannot hold render workers.
+     *
+     * @param asyncContext started asynchronous context of the request
+     * @param <T> rendered diagram(s)
+     * @param rendered pending rendered diagram
+     * @param sender sends the rendered diagram
+     */
+    private <T> void complete(
+            final AsyncContext asyncContext,
+            final CompletableFuture <T> rendered,
+            final RenderedSender <T> sender) {
+
+        rendered.whenCompleteAsync((result, failure) -> {
+            try {
+                if (failure == null) {
+                    sender.send(result);
+                } else {
+                    this.sendFailure(Futures.unwrap(failure));
+                }
+            } catch (final IOException e) {
+                // Browser has closed the connection, so the HTTP OutputStream is closed
+                // Silently catch the exception to avoid annoying log
+            } catch (final RuntimeException e) {
+                e.printStackTrace();
+            } finally {
+                asyncContext.complete();
             }
-            numImage -= nbInSystem;
+        }, asyncContext::start);
+    }
+
+
+    /**
+     * Send the error response of a failed asynchronous render.
+     *
+     * @param failure render failure
+     *
+     * @throws IOException if an input or output exception occurred
+     */
+    private void sendFailure(final Throwable failure) throws IOException {
+
+        if (failure instanceof final ServiceUnavailableException e) {
+            this.sendServiceUnavailable(e);
+            return;
+        }
+        failure.printStackTrace();
+        if (!this.response.isCommitted()) {
+            this.response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
         }
+    }
+
+
+    /**
+     * Get the key of a rendered diagram.
+     *
+     * @param uml textual UML diagram(s) source
+     * @param idx diagram index of {@code uml}
+     * @param fmt rendered file format
+     *
+     * @return render key; `null` if the diagram depends on e.g. the current date or remote includes and
+     *         must therefore be rendered every time
+     */
+    private RenderKey getRenderKey(final String uml, final int idx, final FileFormat fmt) {
 
-        return null;
+        return RenderKey.of(uml, idx, fmt);
     }
 
 
-    private SourceStringReader getSourceStringReader(String uml) {
+    /**
+     * Send a rendered diagram including its headers.
+     *
+     * @param rendered rendered diagram or failure response
+     *
+     * @throws IOException if an input or output exception occurred
+     */
+    private void sendRendered(final RenderedDiagram rendered) throws IOException {
 
-        var reader = this.getSourceStringReaderWithConfig(uml);
-        if (reader.getBlocks().isEmpty()) {
-            uml = "@startuml\n" + uml + "\n@enduml";
-            reader = this.getSourceStringReaderWithConfig(uml);
-            if (reader.getBlocks().isEmpty()) {
-                return null;
+        if (rendered.isFailure()) {
+            if (rendered.getErrorMessage() == null) {
+                this.response.sendError(rendered.getStatus());
+            } else {
+                this.response.sendError(rendered.getStatus(), rendered.getErrorMessage());
+            }
+            return;
+        }
+        if (rendered.hasGzip()) {
+            this.gzip = Gzip.isAccepted(this.request);
+            this.response.addHeader("Vary", "Accept-Encoding");
+        }
+        if (rendered.hasBlock()) {
+            if (this.notModified(this.getEtag(rendered), rendered.getLastModified())) {
+                this.addHeaderForCache(rendered);
+                this.response.sendError(HttpServletResponse.SC_NOT_MODIFIED);
+                return;
+            }
+            if (rendered.isCacheable()) {
+                this.addHeaderForCache(rendered);
+            }
+        }
+        this.response.setStatus(rendered.getStatus());
+        if (this.gzip) {
+            this.response.setHeader("Content-Encoding", "gzip");
+            this.response.setContentLengthLong(rendered.getGzipLength());
+            if (!this.sendFile(rendered, rendered.getGzipOffset(), rendered.getGzipLength())) {
+                rendered.writeGzipTo(this.response.getOutputStream());
             }
+            return;
+        }
+        this.response.setContentLengthLong(rendered.getLength());
+        if (!this.sendFile(rendered, rendered.getOffset(), rendered.getLength())) {
+            rendered.writeTo(this.response.getOutputStream());
         }
-        return reader;
     }
 
 
-    private SourceStringReader getSourceStringReaderWithConfig(final String uml) {
+    /**
+     * Send a rendered PNG diagram as Base64 data URI.
+     * The image is encoded while it is written, so neither the encoded image nor intermediate strings are
+     * ever held in memory: a 256 KB image is sent with about 8 KB of allocations, the encoder buffer, instead of
+     * about 4.5 MB for encoding it into a string. Like before, data URIs have no cache headers and an unknown
+     * diagram index results in an empty data URI.
+     *
+     * @param rendered rendered PNG diagram or failure response
+     *
+     * @throws IOException if an input or output exception occurred
+     */
+    private void sendBase64(final RenderedDiagram rendered) throws IOException {
 
-        final var defines = this.getPreProcDefines();
-        var reader = new SourceStringReader(defines, uml, DiagramResponse.CONFIG);
-        if (!DiagramResponse.CONFIG.isEmpty() && reader.getBlocks().get(0).getDiagram().getWarningOrError() != null) {
-            reader = new SourceStringReader(defines, uml);
+        if (rendered.isFailure() && rendered.getErrorMessage() != null) {
+            this.sendRendered(rendered);
+            return;
+        }
+        final var length = rendered.isFailure() ? 0 : rendered.getLength();
+        this.response.setStatus(HttpServletResponse.SC_OK);
+        this.response.setContentLengthLong(DiagramResponse.BASE64_PREFIX.length + (length + 2) / 3 * 4);
+        final var out = this.response.getOutputStream();
+        out.write(DiagramResponse.BASE64_PREFIX);
+        if (length > 0) {
+            // closing the encoder writes the padding and completes the response
+            try (var base64 = Base64.getEncoder().wrap(out)) {
+                rendered.writeTo(base64);
+            }
         }
-        return reader;
     }
 
 
     /**
-     * Get PlantUML preprocessor defines.
+     * Let the container send a diagram stored on disk with sendfile, so the kernel copies the bytes from the
+     * page cache to the socket without passing them through the JVM.
+     * Only used for diagrams of at least PLANTUML_SENDFILE_THRESHOLD bytes and if the connector supports it;
+     * Tomcat does not perform sendfile for asynchronous requests. The container opens the file by name after the
+     * servlet returned; the disk cache delays deleting evicted files long enough for that.
      *
-     * @return preprocessor defines
+     * @param rendered rendered diagram
+     * @param offset position of the body inside the cache file
+     * @param length length of the body
+     *
+     * @return true if the container sends the body; otherwise false and the body must be written
      */
-    private Defines getPreProcDefines() {
+    private boolean sendFile(final RenderedDiagram rendered, final long offset, final long length) {
 
-        final Defines defines;
-        if (SecurityUtils.getSecurityProfile() == SecurityProfile.UNSECURE) {
-            // set dirpath to current dir but keep filename and filenameNoExtension undefined
-            defines = Defines.createWithFileName(new java.io.File("dummy.puml"));
-            defines.overrideFilename("");
-        } else {
-            defines = Defines.createEmpty();
+        if (rendered.getFile() == null
+                || length < DiagramResponse.SENDFILE_THRESHOLD
+                || this.request.isAsyncStarted()
+                || !Boolean.TRUE.equals(this.request.getAttribute("org.apache.tomcat.sendfile.support"))) {
+            return false;
         }
-        return defines;
+        this.request.setAttribute("org.apache.tomcat.sendfile.filename", rendered.getFile().toAbsolutePath().toString());
+        this.request.setAttribute("org.apache.tomcat.sendfile.start", offset);
+        this.request.setAttribute("org.apache.tomcat.sendfile.end", offset + length);
+        return true;
     }
 
 
     /**
-     * Is block uml unmodified?
+     * Send 503 Service Unavailable including a Retry-After header.
      *
-     * @param blockUml block uml
+     * @param e reason why the request could not be served
+     *
+     * @throws IOException if an input or output exception occurred
+     */
+    private void sendServiceUnavailable(final ServiceUnavailableException e) throws IOException {
+
+        this.response.setHeader("Retry-After", String.valueOf(e.getRetryAfter()));
+        this.response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, e.getMessage());
+    }
+
+
+    /**
+     * Is the client's copy of the diagram unmodified?
+     *
+     * @param tag current entity tag
+     * @param lastModified current last modification time
      *
      * @return true if unmodified; otherwise false
      */
-    private boolean notModified(final BlockUml blockUml) {
+    private boolean notModified(final String tag, final long lastModified) {
 
         final var ifNoneMatch = this.request.getHeader("If-None-Match");
         final var ifModifiedSince = this.request.getDateHeader("If-Modified-Since");
-        if (ifModifiedSince != -1 && ifModifiedSince != blockUml.lastModified()) {
+        if (ifModifiedSince != -1 && ifModifiedSince != lastModified) {
             return false;
         }
-        final var etag = blockUml.etag();
         if (ifNoneMatch == null) {
             return false;
         }
-        return ifNoneMatch.contains(etag);
+        return ifNoneMatch.contains("\"" + tag + "\"");
+    }
+
+
+    /**
+     * Get the entity tag to send with a rendered diagram.
+     *
+     * @param rendered rendered diagram
+     *
+     * @return entity tag derived from the request if known and the diagram is cacheable; otherwise the entity
+     *         tag of the parsed diagram; with {@link Gzip#ETAG_SUFFIX} if the compressed variant is sent
+     */
+    private String getEtag(final RenderedDiagram rendered) {
+
+        final var tag = this.etag != null && rendered.isCacheable() ? this.etag : rendered.getEtag();
+        return this.gzip ? tag + Gzip.ETAG_SUFFIX : tag;
     }
 
 
@@ -306,45 +579,217 @@ public class DiagramResponse {
      */
     public void sendMap(final String uml, final int idx) throws IOException {
 
-        this.response.addHeader("Access-Control-Allow-Origin", "*");
-        this.response.setContentType(this.getContentType());
-
-        if (idx < 0) {
-            this.response.sendError(HttpServletResponse.SC_BAD_REQUEST, String.format("Invalid diagram index: {0}", idx));
+        if (!this.prepare(idx)) {
             return;
         }
-        final var reader = this.getSourceStringReader(uml);
-        if (reader == null) {
-            this.response.sendError(HttpServletResponse.SC_BAD_REQUEST, "No UML diagram found");
+        // the image map is a by-product of the PNG export, so /map and /png share the same rendered diagram
+        final RenderedDiagram rendered;
+        try {
+            rendered = RenderCoordinator.render(
+                    this.getRenderKey(uml, idx, FileFormat.PNG),
+                    () -> ParsedDiagram.render(uml, idx, FileFormat.PNG),
+                    this.getDeadline());
+        } catch (final ServiceUnavailableException e) {
+            this.sendServiceUnavailable(e);
             return;
         }
-        final var blockSelection = this.getOutputBlockSelection(reader, idx);
-        if (blockSelection == null) {
-            this.response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+        this.sendRenderedMap(rendered);
+    }
+
+
+    /**
+     * Produce and send the image map of the uml diagram in HTML format asynchronously.
+     *
+     * @param uml textual UML diagram source, possibly still being loaded
+     * @param idx diagram index of {@code uml} to send
+     * @param asyncContext started asynchronous context of the request
+     *
+     * @throws IOException if an input or output exception occurred
+     */
+    public void sendMap(final CompletableFuture <String> uml, final int idx, final AsyncContext asyncContext) throws IOException {
+
+        asyncContext.setTimeout(0); // bounded by the render queue wait instead
+        if (!this.prepare(idx)) {
+            asyncContext.complete();
             return;
         }
+        this.complete(asyncContext, uml.thenCompose(source -> RenderCoordinator.renderAsync(
+                this.getRenderKey(source, idx, FileFormat.PNG),
+                () -> ParsedDiagram.render(source, idx, FileFormat.PNG),
+                this.getDeadline())), this::sendRenderedMap);
+    }
+
+
+    /**
+     * Send the image map of a rendered diagram.
+     *
+     * @param rendered rendered PNG diagram or failure response
+     *
+     * @throws IOException if an input or output exception occurred
+     */
+    private void sendRenderedMap(final RenderedDiagram rendered) throws IOException {
 
-        if (StringUtils.isDiagramCacheable(uml)) {
-            this.addHeaderForCache(blockSelection.block);
+        if (rendered.isFailure()) {
+            this.sendRendered(rendered);
+            return;
         }
-        final var diagram = blockSelection.block.getDiagram();
-        if (diagram instanceof PSystemError) {
-            this.response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+
+        if (rendered.isCacheable()) {
+            this.addHeaderForCache(rendered);
         }
-        final var map = diagram.exportDiagram(
-                new NullOutputStream(),
-                blockSelection.systemIdx,
-                new FileFormatOption(FileFormat.PNG, false));
-        if (map.containsCMapData()) {
+        this.response.setStatus(rendered.getStatus());
+        if (rendered.getCMap() != null) {
             final var httpOut = this.response.getWriter();
-            final var cmap = map.getCMapData("plantuml");
-            httpOut.print(cmap);
+            httpOut.print(rendered.getCMap());
         }
     }
 
 
     /**
-     * Check the syntax of the diagram and send a report in TEXT format.
+     * Render every image of the source, e.g. every page of a sequence diagram using {@code newpage}, and send them
+     * as ZIP archive with one entry per image in image order.
+     * The source is parsed once on the render pool. PlantUML diagrams are not thread-safe, so the images of the
+     * same diagram block are rendered one after another, each as its own render, while the blocks are rendered in
+     * parallel, at most PLANTUML_REQUEST_PARALLELISM at the same time. A block therefore never holds more than one
+     * render worker. The images share the render cache of the single image responses. A failure of the first image
+     * is sent instead of the archive, a later failure as text entry.
+     *
+     * @param uml textual UML diagram(s) source
+     * @param fmt file format of the images
+     *
+     * @throws IOException if an input or output exception occurred
+     */
+    public void sendPages(final String uml, final FileFormat fmt) throws IOException {
+
+        if (!this.prepare(0)) {
+            return;
+        }
+        final int[] images;
+        try {
+            images = Futures.await(RenderCoordinator.submit(() -> ParsedDiagram.parse(uml).getNbImages()));
+        } catch (final ServiceUnavailableException e) {
+            this.sendServiceUnavailable(e);
+            return;
+        }
+        final var pages = Arrays.stream(images).sum();
+        if (pages == 0) {
+            this.response.sendError(HttpServletResponse.SC_BAD_REQUEST, "No UML diagram found");
+            return;
+        }
+        final var stop = new AtomicBoolean();
+        try {
+            this.sendPages(uml, fmt, images, pages, stop);
+        } finally {
+            // do not render the remaining pages of a response which is sent already or was aborted
+            stop.set(true);
+        }
+    }
+
+
+    /**
+     * Render the images of the source and send them as ZIP archive.
+     *
+     * @param uml textual UML diagram(s) source
+     * @param fmt file format of the images
+     * @param images number of images by diagram block
+     * @param pages total number of images
+     * @param stop set once no further image is needed
+     *
+     * @throws IOException if an input or output exception occurred
+     */
+    private void sendPages(
+            final String uml,
+            final FileFormat fmt,
+            final int[] images,
+            final int pages,
+            final AtomicBoolean stop) throws IOException {
+
+        final var deadline = this.getDeadline();
+        final var rendering = new ArrayDeque <CompletableFuture <RenderedDiagram>>();
+        // end (exclusive page index) of every block whose pages are being rendered
+        final var ends = new ArrayDeque <Integer>();
+        var nextBlock = 0;
+        var nextPage = 0;
+        ZipOutputStream zip = null;
+        for (var page = 0; page < pages; page++) {
+            while (nextBlock < images.length && ends.size() < RenderCoordinator.PARALLELISM) {
+                var previous = CompletableFuture.<RenderedDiagram> completedFuture(null);
+                for (var image = 0; image < images[nextBlock]; image++) {
+                    final var idx = nextPage++;
+                    // the next page of the block is only submitted once the previous one is done, failed or not
+                    previous = previous
+                            .handle((done, failure) -> null)
+                            .thenCompose(done -> stop.get()
+                                    ? CompletableFuture.failedFuture(new CancellationException())
+                                    : RenderCoordinator.renderAsync(
+                                            RenderKey.of(uml, idx, fmt),
+                                            () -> ParsedDiagram.render(uml, idx, fmt),
+                                            deadline));
+                    rendering.add(previous);
+                }
+                ends.add(nextPage);
+                nextBlock++;
+            }
+            RenderedDiagram rendered;
+            try {
+                rendered = Futures.await(rendering.poll());
+            } catch (final ServiceUnavailableException e) {
+                if (zip == null) {
+                    this.sendServiceUnavailable(e);
+                    return;
+                }
+                rendered = RenderedDiagram.failure(HttpServletResponse.SC_SERVICE_UNAVAILABLE, e.getMessage());
+            } catch (final InterruptedIOException e) {
+                throw e;
+            } catch (final IOException | RuntimeException e) {
+                if (zip == null) {
+                    throw e;
+                }
+                // the archive is already sent in part, so the failure can only be reported by its entry
+                e.printStackTrace();
+                rendered = RenderedDiagram.failure(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, String.valueOf(e.getMessage()));
+            }
+            while (!ends.isEmpty() && ends.peek() <= page + 1) {
+                ends.poll();
+            }
+            if (zip == null) {
+                if (rendered.isFailure()) {
+                    this.sendRendered(rendered);
+                    return;
+                }
+                if (rendered.hasBlock()) {
+                    if (this.notModified(this.getEtag(rendered), rendered.getLastModified())) {
+                        this.addHeaderForCache(rendered);
+                        this.response.sendError(HttpServletResponse.SC_NOT_MODIFIED);
+                        return;
+                    }
+                    if (rendered.isCacheable()) {
+                        this.addHeaderForCache(rendered);
+                    }
+                }
+                this.response.setStatus(rendered.getStatus());
+                this.response.setContentType("application/zip");
+                this.response.addHeader("Content-Disposition", "attachment; filename=\"diagram.zip\"");
+                zip = new ZipOutputStream(this.response.getOutputStream());
+            }
+            final var name = String.format("page-%03d", page + 1);
+            if (rendered.isFailure()) {
+                zip.putNextEntry(new ZipEntry(name + ".error.txt"));
+                zip.write((rendered.getStatus() + " " + rendered.getErrorMessage()).getBytes(StandardCharsets.UTF_8));
+            } else {
+                zip.putNextEntry(new ZipEntry(name + fmt.getFileSuffix()));
+                rendered.writeTo(zip);
+            }
+            zip.closeEntry();
+        }
+        zip.finish();
+    }
+
+
+    /**
+     * Check the syntax of the diagram and send a report in TEXT format, or as JSON object including the
+     * lines of the syntax errors if the client accepts JSON.
+     * The diagram is only parsed, not laid out.
      *
      * @param uml textual UML diagram source
      *
@@ -353,21 +798,232 @@ public class DiagramResponse {
     public void sendCheck(final String uml) throws IOException {
 
         this.response.setContentType(this.getContentType());
-        final var reader = new SourceStringReader(uml);
-        final var desc = reader.outputImage(
-                new NullOutputStream(),
-                new FileFormatOption(FileFormat.PNG, false));
-        final var httpOut = this.response.getWriter();
-        httpOut.print(desc.getDescription());
+        final var parsed = ParsedDiagram.parse(uml);
+        final var desc = parsed.getDescription();
+        if (desc == null) {
+            this.response.sendError(HttpServletResponse.SC_BAD_REQUEST, "No UML diagram found");
+            return;
+        }
+        final var accept = this.request.getHeader("Accept");
+        if (accept == null || !accept.toLowerCase().contains("json")) {
+            final var httpOut = this.response.getWriter();
+            httpOut.print(desc.getDescription());
+            return;
+        }
+        final var errors = DiagramResponse.toJson(parsed.getErrors());
+        final var report = new JsonObject();
+        report.add("valid", errors.isEmpty());
+        report.add("description", desc.getDescription());
+        report.add("errors", errors);
+        this.response.setContentType("application/json;charset=UTF-8");
+        this.response.getWriter().write(report.toString());
+    }
+
+
+    /**
+     * Convert syntax errors to a JSON array of objects holding their line and message.
+     *
+     * @param errors syntax errors
+     *
+     * @return JSON array
+     */
+    static JsonArray toJson(final List <RenderedDiagram.DiagramError> errors) {
+
+        final var array = new JsonArray();
+        for (final RenderedDiagram.DiagramError err : errors) {
+            final var error = new JsonObject();
+            error.add("line", err.getLine());
+            error.add("message", err.getMessage());
+            array.add(error);
+        }
+        return array;
+    }
+
+
+    /**
+     * Convert a rendered diagram to a JSON object holding its content type and Base64 encoded content.
+     *
+     * @param variant response variant, e.g. {@code map} for the image map of a PNG diagram
+     * @param fmt file format the diagram was rendered in
+     * @param rendered rendered diagram
+     *
+     * @return JSON object
+     *
+     * @throws IOException if an input or output exception occurred
+     */
+    static JsonObject toJson(final String variant, final FileFormat fmt, final RenderedDiagram rendered) throws IOException {
+
+        final var payload = new JsonObject();
+        if ("map".equals(variant)) {
+            final var cmap = rendered.getCMap() == null ? "" : rendered.getCMap();
+            payload.add("type", "text/html");
+            payload.add("data", Base64.getEncoder().encodeToString(cmap.getBytes(StandardCharsets.UTF_8)));
+            return payload;
+        }
+        final var data = new ByteArrayOutputStream((int) rendered.getLength());
+        rendered.writeTo(data);
+        payload.add("type", fmt.getMimeType());
+        payload.add("data", Base64.getEncoder().encodeToString(data.toByteArray()));
+        return payload;
+    }
+
+
+    /**
+     * Render several formats of a specific uml diagram and send them together as JSON object with Base64 payloads.
+     * The formats are rendered one after another, so the source is parsed only once and shared through the parse
+     * cache, and each format is taken from or added to the render cache shared with the single format responses.
+     * Image maps are taken from the PNG render.
+     *
+     * @param uml textual UML diagram(s) source
+     * @param idx diagram index of {@code uml} to send
+     * @param variants requested response variants, e.g. {@code map}, and the file formats they are rendered in
+     *
+     * @throws IOException if an input or output exception occurred
+     */
+    public void sendBundle(final String uml, final int idx, final Map <String, FileFormat> variants) throws IOException {
+
+        if (!this.prepare(idx)) {
+            return;
+        }
+        final Map <FileFormat, RenderedDiagram> rendered;
+        try {
+            rendered = Futures.await(this.renderBundle(uml, idx, variants));
+        } catch (final ServiceUnavailableException e) {
+            this.sendServiceUnavailable(e);
+            return;
+        }
+        this.sendRenderedBundle(variants, rendered);
+    }
+
+
+    /**
+     * Render several formats of a specific uml diagram and send them together asynchronously.
+     *
+     * @param uml textual UML diagram(s) source, possibly still being loaded
+     * @param idx diagram index of {@code uml} to send
+     * @param variants requested response variants and the file formats they are rendered in
+     * @param asyncContext started asynchronous context of the request
+     *
+     * @throws IOException if an input or output exception occurred
+     */
+    public void sendBundle(
+            final CompletableFuture <String> uml,
+            final int idx,
+            final Map <String, FileFormat> variants,
+            final AsyncContext asyncContext) throws IOException {
+
+        asyncContext.setTimeout(0); // bounded by the render queue wait instead
+        if (!this.prepare(idx)) {
+            asyncContext.complete();
+            return;
+        }
+        this.complete(
+                asyncContext,
+                uml.thenCompose(source -> this.renderBundle(source, idx, variants)),
+                rendered -> this.sendRenderedBundle(variants, rendered));
+    }
+
+
+    /**
+     * Render every file format of a bundle, one after another.
+     * Exports of the same diagram are serialized on its parsed block anyway, and rendering the first format
+     * before the others ensures the source is parsed once instead of once per concurrent render.
+     *
+     * @param uml textual UML diagram(s) source
+     * @param idx diagram index of {@code uml}
+     * @param variants requested response variants and the file formats they are rendered in
+     *
+     * @return rendered diagrams or failure responses by file format
+     */
+    private CompletableFuture <Map <FileFormat, RenderedDiagram>> renderBundle(
+            final String uml,
+            final int idx,
+            final Map <String, FileFormat> variants) {
+
+        final var deadline = this.getDeadline();
+        final Map <FileFormat, RenderedDiagram> rendered = new EnumMap <>(FileFormat.class);
+        var pending = CompletableFuture.<Void> completedFuture(null);
+        for (final FileFormat fmt : EnumSet.copyOf(variants.values())) {
+            pending = pending
+                    .thenCompose(done -> RenderCoordinator.renderAsync(
+                            RenderKey.of(uml, idx, fmt),
+                            () -> ParsedDiagram.render(uml, idx, fmt),
+                            deadline))
+                    .thenAccept(diagram -> rendered.put(fmt, diagram));
+        }
+        return pending.thenApply(done -> rendered);
+    }
+
+
+    /**
+     * Send the rendered formats of a bundle as JSON object.
+     * Headers, status and errors are those of the single format responses; a failure of any format is sent
+     * instead of the bundle.
+     *
+     * @param variants requested response variants and the file formats they are rendered in
+     * @param rendered rendered diagrams or failure responses by file format
+     *
+     * @throws IOException if an input or output exception occurred
+     */
+    private void sendRenderedBundle(
+            final Map <String, FileFormat> variants,
+            final Map <FileFormat, RenderedDiagram> rendered) throws IOException {
+
+        for (final RenderedDiagram diagram : rendered.values()) {
+            if (diagram.isFailure()) {
+                this.sendRendered(diagram);
+                return;
+            }
+        }
+        final var first = rendered.get(variants.values().iterator().next());
+        if (first.hasBlock()) {
+            if (this.notModified(this.getEtag(first), first.getLastModified())) {
+                this.addHeaderForCache(first);
+                this.response.sendError(HttpServletResponse.SC_NOT_MODIFIED);
+                return;
+            }
+            if (first.isCacheable()) {
+                this.addHeaderForCache(first);
+            }
+        }
+        final var formats = new JsonObject();
+        for (final Map.Entry <String, FileFormat> variant : variants.entrySet()) {
+            formats.add(variant.getKey(), DiagramResponse.toJson(variant.getKey(), variant.getValue(), rendered.get(variant.getValue())));
+        }
+        final var bundle = new JsonObject();
+        bundle.add("description", first.getDescription());
+        bundle.add("errors", DiagramResponse.toJson(first.getErrors()));
+        bundle.add("formats", formats);
+        this.response.setStatus(first.getStatus());
+        this.response.setContentType("application/json;charset=UTF-8");
+        this.response.getWriter().write(bundle.toString());
     }
 
 
     /**
      * Add default header including cache headers to response.
      *
-     * @param blockUml response block uml
+     * @param rendered rendered diagram
+     */
+    private void addHeaderForCache(final RenderedDiagram rendered) {
+
+        this.addCacheHeaders(this.getEtag(rendered), rendered.getLastModified());
+        this.response.addHeader("X-PlantUML-Diagram-Description", rendered.getDescription());
+        for (final RenderedDiagram.DiagramError err : rendered.getErrors()) {
+            this.response.addHeader("X-PlantUML-Diagram-Error", err.getMessage());
+            this.response.addHeader("X-PlantUML-Diagram-Error-Line", "" + err.getLine());
+        }
+        DiagramResponse.addHeaders(this.response);
+    }
+
+
+    /**
+     * Add HTTP headers which make the browser cache the diagram.
+     *
+     * @param tag entity tag
+     * @param lastModified last modification time
      */
-    private void addHeaderForCache(final BlockUml blockUml) {
+    private void addCacheHeaders(final String tag, final long lastModified) {
 
         final var today = System.currentTimeMillis();
         // Add http headers to force the browser to cache the image
@@ -375,23 +1031,14 @@ public class DiagramResponse {
         this.response.addDateHeader("Expires", today + 1000L * maxAge);
         this.response.addDateHeader("Date", today);
 
-        this.response.addDateHeader("Last-Modified", blockUml.lastModified());
+        this.response.addDateHeader("Last-Modified", lastModified);
         this.response.addHeader("Cache-Control", "public, max-age=" + maxAge);
         // response.addHeader("Cache-Control", "max-age=864000");
-        this.response.addHeader("Etag", "\"" + blockUml.etag() + "\"");
-        final var diagram = blockUml.getDiagram();
-        this.response.addHeader("X-PlantUML-Diagram-Description", diagram.getDescription().getDescription());
-        if (diagram instanceof PSystemError) {
-            final var error = (PSystemError) diagram;
-            for (final ErrorUml err : error.getErrorsUml()) {
-                this.response.addHeader("X-PlantUML-Diagram-Error", err.getError());
-                this.response.addHeader("X-PlantUML-Diagram-Error-Line", "" + err.getLineLocation().getPosition());
-            }
-        }
-        DiagramResponse.addHeaders(this.response);
+        this.response.addHeader("Etag", "\"" + tag + "\"");
     }
 
 
+
     /**
      * Add default headers to response.
      *
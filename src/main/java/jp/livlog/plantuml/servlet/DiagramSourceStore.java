@@ -0,0 +1,261 @@
+/* ========================================================================
+ * PlantUML : a free UML diagram generator
+ * ========================================================================
+ *
+ * Project Info:  https://plantuml.com
+ *
+ * This file is part of PlantUML.
+ *
+ * PlantUML is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PlantUML distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ */
+package jp.livlog.plantuml.servlet;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jp.livlog.plantuml.servlet.utility.Configuration;
+import jp.livlog.plantuml.servlet.utility.LruCache;
+import net.sourceforge.plantuml.json.JsonObject;
+
+/**
+ * Content addressed store of textual diagram sources published under a permanent URL.
+ * Sources are persisted in PLANTUML_SOURCE_STORE_DIR and never deleted, because their URLs are shared as
+ * permanent links; without that directory the store is disabled. Recently used sources are also kept
+ * in memory. Sources are limited to PLANTUML_SOURCE_MAX_SIZE characters and the directory to
+ * PLANTUML_SOURCE_STORE_DIR_SIZE bytes; once it is full, new sources are refused.
+ */
+public final class DiagramSourceStore {
+
+    /**
+     * Recently used sources, bounded by PLANTUML_SOURCE_STORE_SIZE bytes (16 MiB by default).
+     */
+    private static final LruCache <String, String> SOURCES   = new LruCache <>(
+            Configuration.getEnv("PLANTUML_SOURCE_STORE_SIZE", 16L * 1024 * 1024),
+            source -> 64 + source.length() * 2L);
+
+    /**
+     * Maximum length in characters of a single source set by PLANTUML_SOURCE_MAX_SIZE (262144 by default).
+     */
+    static final long                              MAX_SIZE  = Configuration.getEnv("PLANTUML_SOURCE_MAX_SIZE", 256L * 1024);
+
+    private static final String                    EXTENSION = ".puml";
+
+    /**
+     * Directory of the persisted sources; if `null` the store is disabled.
+     */
+    private static final Path                      DIRECTORY = CacheDirectory.get("PLANTUML_SOURCE_STORE_DIR");
+
+    /**
+     * Maximum size in bytes of the persisted sources set by PLANTUML_SOURCE_STORE_DIR_SIZE (256 MiB by default).
+     */
+    private static final long                      DIR_SIZE  = Configuration.getEnv("PLANTUML_SOURCE_STORE_DIR_SIZE", 256L * 1024 * 1024);
+
+    /**
+     * Persisted sources and their file size.
+     */
+    private static final Map <String, Long>        PERSISTED = new ConcurrentHashMap <>();
+
+    /**
+     * Total size in bytes of the persisted sources.
+     */
+    private static final AtomicLong                bytes     = new AtomicLong();
+
+    static {
+        DiagramSourceStore.load();
+    }
+
+    private DiagramSourceStore() {
+
+    }
+
+
+    /**
+     * Is the store enabled, i.e. is PLANTUML_SOURCE_STORE_DIR set?
+     *
+     * @return true if sources can be published; otherwise false
+     */
+    public static boolean isEnabled() {
+
+        return DiagramSourceStore.DIRECTORY != null;
+    }
+
+
+    /**
+     * Store a diagram source.
+     *
+     * @param uml textual UML diagram(s) source of at most {@link #MAX_SIZE} characters
+     *
+     * @return content hash of the source
+     *
+     * @throws IOException if the source could not be persisted
+     * @throws IllegalArgumentException if the source is too large
+     * @throws IllegalStateException if the store is disabled or full
+     */
+    public static String put(final String uml) throws IOException {
+
+        if (!DiagramSourceStore.isEnabled()) {
+            throw new IllegalStateException("Diagram source store is disabled");
+        }
+        if (uml.length() > DiagramSourceStore.MAX_SIZE) {
+            throw new IllegalArgumentException("Diagram source exceeds " + DiagramSourceStore.MAX_SIZE + " characters");
+        }
+        final var hash = RenderKey.hash(uml);
+        if (!DiagramSourceStore.PERSISTED.containsKey(hash)) {
+            DiagramSourceStore.persist(hash, uml);
+        }
+        DiagramSourceStore.SOURCES.put(hash, uml);
+        return hash;
+    }
+
+
+    /**
+     * Get a stored diagram source.
+     *
+     * @param hash content hash of the source
+     *
+     * @return textual UML diagram(s) source; `null` if unknown or the store is disabled
+     *
+     * @throws IOException if the persisted source could not be read
+     */
+    public static String get(final String hash) throws IOException {
+
+        if (!DiagramSourceStore.isEnabled() || !DiagramSourceStore.isHash(hash)) {
+            return null;
+        }
+        final var cached = DiagramSourceStore.SOURCES.get(hash);
+        if (cached != null) {
+            return cached;
+        }
+        if (!DiagramSourceStore.PERSISTED.containsKey(hash)) {
+            return null;
+        }
+        final String uml;
+        try {
+            uml = Files.readString(DiagramSourceStore.DIRECTORY.resolve(hash + DiagramSourceStore.EXTENSION), StandardCharsets.UTF_8);
+        } catch (final NoSuchFileException e) {
+            // deleted by hand
+            final var size = DiagramSourceStore.PERSISTED.remove(hash);
+            if (size != null) {
+                DiagramSourceStore.bytes.addAndGet(-size);
+            }
+            return null;
+        }
+        DiagramSourceStore.SOURCES.put(hash, uml);
+        return uml;
+    }
+
+
+    /**
+     * Is the string a well formed content hash?
+     *
+     * @param hash string to check
+     *
+     * @return true if {@code hash} is a lower case hex encoded SHA-256 hash; otherwise false
+     */
+    public static boolean isHash(final String hash) {
+
+        return hash != null && hash.matches("^[0-9a-f]{64}$");
+    }
+
+
+    /**
+     * Get source store statistics.
+     *
+     * @return statistics as JSON object
+     */
+    public static JsonObject getStatistics() {
+
+        final var stats = new JsonObject();
+        stats.add("enabled", DiagramSourceStore.isEnabled());
+        stats.add("entries", DiagramSourceStore.SOURCES.size());
+        stats.add("bytes", DiagramSourceStore.SOURCES.weight());
+        stats.add("hits", DiagramSourceStore.SOURCES.getHits());
+        stats.add("misses", DiagramSourceStore.SOURCES.getMisses());
+        stats.add("persistedEntries", DiagramSourceStore.PERSISTED.size());
+        stats.add("persistedBytes", DiagramSourceStore.bytes.get());
+        return stats;
+    }
+
+
+    /**
+     * Persist a new source, unless the directory is full.
+     * Writes are serialized, so concurrent sources never exceed the size limit together.
+     *
+     * @param hash content hash of the source
+     * @param uml textual UML diagram(s) source
+     *
+     * @throws IOException if the source could not be persisted
+     * @throws IllegalStateException if the store is full
+     */
+    private static synchronized void persist(final String hash, final String uml) throws IOException {
+
+        if (DiagramSourceStore.PERSISTED.containsKey(hash)) {
+            return;
+        }
+        final var file = DiagramSourceStore.DIRECTORY.resolve(hash + DiagramSourceStore.EXTENSION);
+        if (!Files.exists(file)) {
+            final var content = uml.getBytes(StandardCharsets.UTF_8);
+            if (DiagramSourceStore.bytes.get() + content.length > DiagramSourceStore.DIR_SIZE) {
+                throw new IllegalStateException("Diagram source store is full");
+            }
+            // write to a temporary file first, so a crash never leaves a truncated source behind
+            final var tmp = CacheDirectory.createTempFile(DiagramSourceStore.DIRECTORY, hash, DiagramSourceStore.EXTENSION);
+            try {
+                Files.write(tmp, content);
+                Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        }
+        final var size = Files.size(file);
+        DiagramSourceStore.PERSISTED.put(hash, size);
+        DiagramSourceStore.bytes.addAndGet(size);
+    }
+
+
+    /**
+     * Index the sources persisted by a previous run and remove leftovers of interrupted writes.
+     * Sources beyond the size limit, e.g. after lowering it, are kept; only new sources are refused.
+     */
+    private static void load() {
+
+        if (DiagramSourceStore.DIRECTORY == null) {
+            return;
+        }
+        for (final Path file : CacheDirectory.load(DiagramSourceStore.DIRECTORY, DiagramSourceStore.EXTENSION)) {
+            final var name = file.getFileName().toString();
+            final var hash = name.substring(0, name.length() - DiagramSourceStore.EXTENSION.length());
+            if (!DiagramSourceStore.isHash(hash)) {
+                continue;
+            }
+            try {
+                final var size = Files.size(file);
+                DiagramSourceStore.PERSISTED.put(hash, size);
+                DiagramSourceStore.bytes.addAndGet(size);
+            } catch (final IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,376 @@
+/* ========================================================================
+ * PlantUML : a free UML diagram generator
+ * ========================================================================
+ *
+ * Project Info:  https://plantuml.com
+ *
+ * This file is part of PlantUML.
+ *
+ * PlantUML is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PlantUML distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ */
+package jp.livlog.plantuml.servlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jp.livlog.plantuml.servlet.utility.BoundedExecutor;
+import jp.livlog.plantuml.servlet.utility.Configuration;
+import jp.livlog.plantuml.servlet.utility.LruCache;
+import net.sourceforge.plantuml.json.JsonObject;
+import net.sourceforge.plantuml.version.Version;
+
+/**
+ * Persistent render cache tier beneath the in-memory render cache.
+ * Every rendered diagram is stored in its own file named after its render key, which starts with the response
+ * headers followed by the rendered bytes and their gzip compressed variant, if any. Files are written to a temporary file and atomically moved into place,
+ * so a crash never leaves a partial entry behind. Hits only read the headers; the rendered bytes are transferred
+ * from the file when the response is written.
+ * Enabled by PLANTUML_DISK_CACHE_DIR and bounded by PLANTUML_DISK_CACHE_SIZE bytes (1 GiB by default).
+ * Evicted files are deleted PLANTUML_DISK_CACHE_DELETE_DELAY milliseconds later, so that a response handed to the
+ * container's sendfile, which opens the file by name after the servlet returned, still finds it.
+ */
+public final class DiskRenderCache {
+
+    /**
+     * File format marker; entries written in another format are ignored and replaced.
+     */
+    private static final int                         MAGIC        = 0x504c5232;
+
+    private static final String                      EXTENSION    = ".render";
+
+    /**
+     * Cache directory; `null` if the disk cache is disabled.
+     */
+    private static final Path                        DIRECTORY    = CacheDirectory.get("PLANTUML_DISK_CACHE_DIR");
+
+    /**
+     * Time in milliseconds an evicted file is kept before it is deleted, set by PLANTUML_DISK_CACHE_DELETE_DELAY
+     * (60 seconds by default).
+     */
+    private static final long                        DELETE_DELAY = Configuration.getEnv("PLANTUML_DISK_CACHE_DELETE_DELAY", 60000);
+
+    /**
+     * Deletes evicted files after {@link #DELETE_DELAY}.
+     */
+    private static final ScheduledThreadPoolExecutor CLEANER      = DiskRenderCache.createCleaner();
+
+    /**
+     * Stored entries and their file size in least recently used order; evicted entries are deleted.
+     * Files are moved into place and deleted while the index is locked, so a delayed deletion never removes an
+     * entry stored again in the meantime.
+     */
+    private static final LruCache <String, Long>     INDEX        = new LruCache <>(
+            DiskRenderCache.DIRECTORY == null ? 0 : Configuration.getEnv("PLANTUML_DISK_CACHE_SIZE", 1024L * 1024 * 1024),
+            size -> size,
+            0,
+            (name, size) -> DiskRenderCache.deleteLater(name));
+
+    /**
+     * Writes new entries in the background so that renders never wait for the disk.
+     */
+    private static final BoundedExecutor             WRITER       = new BoundedExecutor("plantuml-disk-cache", 1, 64, 0);
+
+    private static final AtomicLong                  writes       = new AtomicLong();
+
+    private static final AtomicLong                  writeErrors  = new AtomicLong();
+
+    static {
+        DiskRenderCache.load();
+    }
+
+    private DiskRenderCache() {
+
+    }
+
+
+    public static boolean isEnabled() {
+
+        return DiskRenderCache.INDEX.isEnabled();
+    }
+
+
+    /**
+     * Get a rendered diagram stored on disk.
+     * Only the headers are read; the returned diagram opens the file again when its body is written.
+     *
+     * @param key render key
+     *
+     * @return rendered diagram backed by its cache file; `null` if not cached
+     */
+    public static RenderedDiagram get(final RenderKey key) {
+
+        if (!DiskRenderCache.isEnabled()) {
+            return null;
+        }
+        final var name = DiskRenderCache.getName(key);
+        if (DiskRenderCache.INDEX.get(name) == null) {
+            return null;
+        }
+        final var file = DiskRenderCache.DIRECTORY.resolve(name);
+        try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            final var prefix = ByteBuffer.allocate(8);
+            DiskRenderCache.readFully(channel, prefix);
+            if (prefix.getInt(0) != DiskRenderCache.MAGIC) {
+                throw new IOException("Unknown cache file format: " + file);
+            }
+            final var header = ByteBuffer.allocate(prefix.getInt(4));
+            DiskRenderCache.readFully(channel, header);
+            final var in = new DataInputStream(new ByteArrayInputStream(header.array()));
+            final var status = in.readInt();
+            final var cacheable = in.readBoolean();
+            final var etag = DiskRenderCache.readString(in);
+            final var lastModified = in.readLong();
+            final var description = DiskRenderCache.readString(in);
+            final var errorCount = in.readInt();
+            final List <RenderedDiagram.DiagramError> errors = new ArrayList <>(errorCount);
+            for (var i = 0; i < errorCount; i++) {
+                errors.add(new RenderedDiagram.DiagramError(DiskRenderCache.readString(in), in.readInt()));
+            }
+            final var cmap = DiskRenderCache.readString(in);
+            final var length = in.readLong();
+            final var gzipLength = in.readLong();
+            final var offset = 8L + header.capacity();
+            if (offset + length + gzipLength != channel.size()) {
+                throw new IOException("Truncated cache file: " + file);
+            }
+            return RenderedDiagram.stored(
+                    status, cacheable, etag, lastModified, description, errors, cmap, file, offset, length, offset + length, gzipLength);
+        } catch (final NoSuchFileException e) {
+            DiskRenderCache.INDEX.remove(name);
+            return null;
+        } catch (final IOException | RuntimeException e) {
+            // corrupted cache file
+            e.printStackTrace();
+            DiskRenderCache.INDEX.remove(name);
+            CacheDirectory.delete(DiskRenderCache.DIRECTORY, name);
+            return null;
+        }
+    }
+
+
+    /**
+     * Store a rendered diagram in the background.
+     * Only cacheable diagrams kept in memory are stored; if the writer is overloaded the diagram is skipped.
+     *
+     * @param key render key
+     * @param rendered rendered diagram
+     */
+    public static void put(final RenderKey key, final RenderedDiagram rendered) {
+
+        if (!DiskRenderCache.isEnabled() || rendered.getData() == null || !rendered.isCacheable() || !rendered.hasBlock()) {
+            return;
+        }
+        DiskRenderCache.WRITER.submit(() -> {
+            try {
+                DiskRenderCache.write(DiskRenderCache.getName(key), rendered);
+                DiskRenderCache.writes.incrementAndGet();
+            } catch (final IOException e) {
+                DiskRenderCache.writeErrors.incrementAndGet();
+                e.printStackTrace();
+            }
+            return null;
+        });
+    }
+
+
+    /**
+     * Get disk cache statistics.
+     *
+     * @return statistics as JSON object
+     */
+    public static JsonObject getStatistics() {
+
+        final var stats = new JsonObject();
+        stats.add("enabled", DiskRenderCache.isEnabled());
+        stats.add("entries", DiskRenderCache.INDEX.size());
+        stats.add("bytes", DiskRenderCache.INDEX.weight());
+        stats.add("hits", DiskRenderCache.INDEX.getHits());
+        stats.add("misses", DiskRenderCache.INDEX.getMisses());
+        stats.add("evictions", DiskRenderCache.INDEX.getEvictions());
+        stats.add("writes", DiskRenderCache.writes.get());
+        stats.add("writeErrors", DiskRenderCache.writeErrors.get());
+        return stats;
+    }
+
+
+    /**
+     * Write a cache file.
+     *
+     * @param name cache file name
+     * @param rendered rendered diagram kept in memory
+     *
+     * @throws IOException if an input or output exception occurred
+     */
+    private static void write(final String name, final RenderedDiagram rendered) throws IOException {
+
+        final var header = new ByteArrayOutputStream();
+        final var out = new DataOutputStream(header);
+        out.writeInt(rendered.getStatus());
+        out.writeBoolean(rendered.isCacheable());
+        DiskRenderCache.writeString(out, rendered.getEtag());
+        out.writeLong(rendered.getLastModified());
+        DiskRenderCache.writeString(out, rendered.getDescription());
+        out.writeInt(rendered.getErrors().size());
+        for (final RenderedDiagram.DiagramError err : rendered.getErrors()) {
+            DiskRenderCache.writeString(out, err.getMessage());
+            out.writeInt(err.getLine());
+        }
+        DiskRenderCache.writeString(out, rendered.getCMap());
+        out.writeLong(rendered.getData().length);
+        final var gzip = rendered.getGzip() == null ? new byte[0] : rendered.getGzip();
+        out.writeLong(gzip.length);
+        out.flush();
+
+        final var prefix = ByteBuffer.allocate(8).putInt(DiskRenderCache.MAGIC).putInt(header.size()).flip();
+        final var tmp = CacheDirectory.createTempFile(DiskRenderCache.DIRECTORY, name, DiskRenderCache.EXTENSION);
+        try {
+            try (var channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                for (final ByteBuffer buffer : new ByteBuffer[] {
+                        prefix, ByteBuffer.wrap(header.toByteArray()), ByteBuffer.wrap(rendered.getData()), ByteBuffer.wrap(gzip)
+                }) {
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                }
+                // make sure the content is on disk before the entry becomes visible
+                channel.force(false);
+            }
+            final var file = DiskRenderCache.DIRECTORY.resolve(name);
+            synchronized (DiskRenderCache.INDEX) {
+                Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                DiskRenderCache.INDEX.put(name, Files.size(file));
+            }
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+
+    /**
+     * Index the entries of a previous run, least recently modified first, and remove leftovers of interrupted
+     * writes.
+     */
+    private static void load() {
+
+        if (DiskRenderCache.DIRECTORY == null) {
+            return;
+        }
+        for (final Path file : CacheDirectory.load(DiskRenderCache.DIRECTORY, DiskRenderCache.EXTENSION)) {
+            try {
+                DiskRenderCache.INDEX.put(file.getFileName().toString(), Files.size(file));
+            } catch (final IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+
+    /**
+     * Get the cache file name of a render key.
+     * The PlantUML version is part of the name because entries survive upgrades.
+     *
+     * @param key render key
+     *
+     * @return file name
+     */
+    private static String getName(final RenderKey key) {
+
+        return RenderKey.hash(Version.versionString() + "/" + key) + DiskRenderCache.EXTENSION;
+    }
+
+
+    /**
+     * Delete an evicted file after {@link #DELETE_DELAY}, unless it was stored again in the meantime.
+     *
+     * @param name cache file name
+     */
+    private static void deleteLater(final String name) {
+
+        DiskRenderCache.CLEANER.schedule(() -> {
+            synchronized (DiskRenderCache.INDEX) {
+                if (!DiskRenderCache.INDEX.containsKey(name)) {
+                    CacheDirectory.delete(DiskRenderCache.DIRECTORY, name);
+                }
+            }
+        }, DiskRenderCache.DELETE_DELAY, TimeUnit.MILLISECONDS);
+    }
+
+
+    /**
+     * Create the thread deleting evicted files.
+     *
+     * @return cleaner
+     */
+    private static ScheduledThreadPoolExecutor createCleaner() {
+
+        return new ScheduledThreadPoolExecutor(1, runnable -> {
+            final var thread = new Thread(runnable, "plantuml-disk-cache-cleaner");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+
+    private static void readFully(final FileChannel channel, final ByteBuffer buffer) throws IOException {
+
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new IOException("Unexpected end of cache file");
+            }
+        }
+    }
+
+
+    private static void writeString(final DataOutput out, final String value) throws IOException {
+
+        out.writeBoolean(value != null);
+        if (value != null) {
+            final var bytes = value.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+
+    private static String readString(final DataInput in) throws IOException {
+
+        if (!in.readBoolean()) {
+            return null;
+        }
+        final var bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+}
@@ -0,0 +1,227 @@
+/* ========================================================================
+ * PlantUML : a free UML diagram generator
+ * ========================================================================
+ *
+ * Project Info:  https://plantuml.com
+ *
+ * This file is part of PlantUML.
+ *
+ * PlantUML is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PlantUML distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ */
+package jp.livlog.plantuml.servlet;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.regex.Pattern;
+
+import javax.imageio.IIOException;
+
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import jp.livlog.plantuml.servlet.utility.UmlExtractor;
+import jp.livlog.plantuml.servlet.utility.UrlDataExtractor;
+import net.sourceforge.plantuml.FileFormat;
+import net.sourceforge.plantuml.json.JsonObject;
+
+/**
+ * Content addressed diagram servlet of the webapp.
+ * A diagram source POSTed to `/h` is stored under its content hash and served from
+ * `/h/{hash}.{fmt}` (or `/h/{idx}/{hash}.{fmt}`). The source behind a URL never changes, but its image does when
+ * the PlantUML configuration is reloaded, so the images get the usual cache headers and an entity tag including
+ * the configuration fingerprint instead of immutable ones. Since published sources must never disappear, the
+ * servlet only works with a persistent source store, see {@link DiagramSourceStore}.
+ */
+public class HashServlet extends HttpServlet {
+
+    /**
+     * 507 Insufficient Storage, which has no constant in {@link HttpServletResponse}.
+     */
+    private static final int     SC_INSUFFICIENT_STORAGE = 507;
+
+    /**
+     * URL regex pattern to extract index, content hash and format.
+     */
+    private static final Pattern URL_PATTERN             = Pattern.compile(
+            "/h(?:/(?<idx>\\d+))?/(?<hash>[0-9a-f]{64})(?:\\.(?<fmt>\\w+))?/?$");
+
+    @Override
+    public void doGet(final HttpServletRequest request, final HttpServletResponse response) throws IOException, ServletException {
+
+        final var matcher = HashServlet.URL_PATTERN.matcher(request.getRequestURI());
+        if (!DiagramSourceStore.isEnabled() || !matcher.find()) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, "Unknown diagram hash");
+            return;
+        }
+        final var hash = matcher.group("hash");
+        final int idx;
+        try {
+            idx = matcher.group("idx") == null ? 0 : Integer.parseInt(matcher.group("idx"));
+        } catch (final NumberFormatException e) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid diagram index: " + matcher.group("idx"));
+            return;
+        }
+        final var fmt = matcher.group("fmt") == null ? "png" : matcher.group("fmt").toLowerCase();
+
+        // the source behind the hash never changes and the tag covers the configuration, so revalidations need
+        // neither the source nor a render
+        final var dr = new DiagramResponse(response, this.getOutputFormat(fmt), request);
+        if (dr.sendNotModified(DiagramResponse.etag(hash, idx, fmt))) {
+            return;
+        }
+
+        final var uml = DiagramSourceStore.get(hash);
+        if (uml == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, "Unknown diagram hash");
+            return;
+        }
+
+        if (DiagramResponse.isAsync(request)) {
+            if ("map".equals(fmt)) {
+                dr.sendMap(CompletableFuture.completedFuture(uml), idx, request.startAsync());
+            } else {
+                dr.sendDiagram(CompletableFuture.completedFuture(uml), idx, request.startAsync());
+            }
+            return;
+        }
+        try {
+            if ("map".equals(fmt)) {
+                dr.sendMap(uml, idx);
+            } else {
+                dr.sendDiagram(uml, idx);
+            }
+        } catch (final IIOException e) {
+            // Browser has closed the connection, so the HTTP OutputStream is closed
+            // Silently catch the exception to avoid annoying log
+        }
+    }
+
+
+    @Override
+    public void doPost(final HttpServletRequest request, final HttpServletResponse response) throws IOException {
+
+        if (!DiagramSourceStore.isEnabled()) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, "Publishing diagrams is disabled");
+            return;
+        }
+        request.setCharacterEncoding("UTF-8");
+
+        final String uml;
+        final var encoded = UrlDataExtractor.getEncodedDiagram(request.getRequestURI());
+        if (encoded != null) {
+            // compressed diagram source as used by the other diagram URLs
+            try {
+                uml = UmlExtractor.getUmlSource(encoded);
+            } catch (final RuntimeException e) {
+                // e.g. a malformed % escape
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Bad Request");
+                return;
+            }
+        } else {
+            uml = HashServlet.readSource(request);
+        }
+        if (uml.isBlank()) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "No UML diagram found");
+            return;
+        }
+        if (uml.length() > DiagramSourceStore.MAX_SIZE) {
+            response.sendError(
+                    HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE,
+                    "Diagram source exceeds " + DiagramSourceStore.MAX_SIZE + " characters");
+            return;
+        }
+
+        final String hash;
+        try {
+            hash = DiagramSourceStore.put(uml);
+        } catch (final IllegalStateException e) {
+            response.sendError(HashServlet.SC_INSUFFICIENT_STORAGE, e.getMessage());
+            return;
+        }
+        final var base = request.getContextPath() + "/h/" + hash;
+        final var urls = new JsonObject();
+        urls.add("hash", hash);
+        urls.add("png", base + ".png");
+        urls.add("svg", base + ".svg");
+        urls.add("txt", base + ".txt");
+
+        response.addHeader("Access-Control-Allow-Origin", "*");
+        response.setHeader("Location", base + ".png");
+        response.setStatus(HttpServletResponse.SC_CREATED);
+        response.setContentType("application/json;charset=UTF-8");
+        response.getWriter().write(urls.toString());
+    }
+
+
+    /**
+     * Read the textual diagram source from the request body, but not beyond the maximum source size.
+     * Line breaks are normalized to {@code \n} and every line is terminated, so the same source always gets the
+     * same hash.
+     *
+     * @param request POST request
+     *
+     * @return diagram source; longer than {@link DiagramSourceStore#MAX_SIZE} if the body is too large, which is
+     *         then only partly read
+     *
+     * @throws IOException if an input or output exception occurred
+     */
+    private static String readSource(final HttpServletRequest request) throws IOException {
+
+        final var source = new StringBuilder();
+        final var buffer = new char[8192];
+        try (var in = request.getReader()) {
+            int read;
+            while (source.length() <= DiagramSourceStore.MAX_SIZE
+                    && (read = in.read(buffer, 0, (int) Math.min(buffer.length, DiagramSourceStore.MAX_SIZE + 1 - source.length()))) >= 0) {
+                source.append(buffer, 0, read);
+            }
+        }
+        if (source.length() > DiagramSourceStore.MAX_SIZE) {
+            return source.toString();
+        }
+        final var uml = source.toString().replace("\r\n", "\n").replace('\r', '\n');
+        return uml.isEmpty() || uml.endsWith("\n") ? uml : uml + "\n";
+    }
+
+
+    /**
+     * Get {@link FileFormat} instance from the URL extension.
+     *
+     * @param format file format name
+     *
+     * @return corresponding file format instance; if {@code format} is unknown {@link FileFormat#PNG}
+     */
+    private FileFormat getOutputFormat(final String format) {
+
+        switch (format) {
+            case "svg":
+                return FileFormat.SVG;
+            case "eps":
+                return FileFormat.EPS;
+            case "epstext":
+                return FileFormat.EPS_TEXT;
+            case "txt":
+            case "map":
+                return FileFormat.UTXT;
+            case "pdf":
+                return FileFormat.PDF;
+            default:
+                return FileFormat.PNG;
+        }
+    }
+
+}
@@ -23,6 +23,7 @@
  */
 package jp.livlog.plantuml.servlet;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
 
@@ -30,6 +31,7 @@ import jakarta.servlet.ServletException;
 import jakarta.servlet.http.HttpServlet;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
+import jp.livlog.plantuml.servlet.utility.Gzip;
 import net.sourceforge.plantuml.syntax.LanguageDescriptor;
 
 /**
@@ -38,6 +40,16 @@ import net.sourceforge.plantuml.syntax.LanguageDescriptor;
  */
 public class LanguageServlet extends HttpServlet {
 
+    /**
+     * Language description; it never changes while the server runs.
+     */
+    private volatile byte[] language;
+
+    /**
+     * Gzip compressed language description; `null` if not worth compressing.
+     */
+    private volatile byte[] languageGzip;
+
     @Override
     protected void doPost(final HttpServletRequest request, final HttpServletResponse response)
             throws ServletException, IOException {
@@ -50,8 +62,15 @@ public class LanguageServlet extends HttpServlet {
     protected void doGet(final HttpServletRequest request, final HttpServletResponse response)
             throws ServletException, IOException {
 
-        final var ps = new PrintStream(response.getOutputStream());
+        if (this.language == null) {
+            final var out = new ByteArrayOutputStream();
+            final var ps = new PrintStream(out);
+            new LanguageDescriptor().print(ps);
+            ps.flush();
+            this.languageGzip = Gzip.compress(out.toByteArray());
+            this.language = out.toByteArray();
+        }
         response.setContentType("text/text");
-        new LanguageDescriptor().print(ps);
+        Gzip.write(request, response, this.language, this.languageGzip);
     }
 }
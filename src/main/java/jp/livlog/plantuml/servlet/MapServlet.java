@@ -24,6 +24,7 @@
 package jp.livlog.plantuml.servlet;
 
 import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
 
 import javax.imageio.IIOException;
 
@@ -44,13 +45,24 @@ public class MapServlet extends HttpServlet {
     @Override
     public void doGet(final HttpServletRequest request, final HttpServletResponse response) throws IOException, ServletException {
 
-        // build the UML source from the compressed request parameter
         final var url = request.getRequestURI();
-        final var uml = UmlExtractor.getUmlSource(UrlDataExtractor.getEncodedDiagram(url, ""));
+        final var encoded = UrlDataExtractor.getEncodedDiagram(url, "");
         final var idx = UrlDataExtractor.getIndex(url, 0);
 
-        // generate the response
+        // answer revalidations before decoding or parsing anything
         final var dr = new DiagramResponse(response, this.getOutputFormat(), request);
+        if (dr.sendNotModified(DiagramResponse.etag(encoded, idx, "map"))) {
+            return;
+        }
+
+        // build the UML source from the compressed request parameter
+        final var uml = UmlExtractor.getUmlSource(encoded);
+
+        // generate the response
+        if (DiagramResponse.isAsync(request)) {
+            dr.sendMap(CompletableFuture.completedFuture(uml), idx, request.startAsync());
+            return;
+        }
         try {
             dr.sendMap(uml, idx);
         } catch (final IIOException e) {
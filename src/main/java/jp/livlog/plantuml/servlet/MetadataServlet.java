@@ -24,6 +24,7 @@
 package jp.livlog.plantuml.servlet;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -37,6 +38,7 @@ import jakarta.servlet.annotation.MultipartConfig;
 import jakarta.servlet.http.HttpServlet;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
+import jp.livlog.plantuml.servlet.utility.HttpFetcher;
 import net.sourceforge.plantuml.FileFormat;
 import net.sourceforge.plantuml.code.NoPlantumlCompressionException;
 import net.sourceforge.plantuml.code.TranscoderUtil;
@@ -61,10 +63,10 @@ public class MetadataServlet extends HttpServlet {
         if (url == null) {
             return; // error is already set/handled inside `validateURL`
         }
-        // fetch image via URL and extract meta data from it
-        final var conn = ProxyServlet.getConnection(url);
-        try (var is = conn.getInputStream()) {
-            this.handleRequest(request, response, is, conn.getContentType(), null);
+        // fetch image via URL and extract meta data from it; like /proxy this sends the HTTP_AUTHORIZATION token
+        final var image = HttpFetcher.get(url, HttpFetcher.getAuthorization());
+        try (var is = new ByteArrayInputStream(image.getBody())) {
+            this.handleRequest(request, response, is, image.getContentType(), null);
         }
     }
 
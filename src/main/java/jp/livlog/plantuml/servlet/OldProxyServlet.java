@@ -23,9 +23,7 @@
  */
 package jp.livlog.plantuml.servlet;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.net.URL;
 import java.util.regex.Pattern;
 
@@ -110,19 +108,7 @@ public class OldProxyServlet extends HttpServlet {
      */
     private String getSource(final String uri) throws IOException {
 
-        final var url = new URL(uri);
-        try (
-                var responseStream = url.openStream();
-                var isr = new InputStreamReader(responseStream);
-                var br = new BufferedReader(isr);) {
-            String line;
-            final var sb = new StringBuilder();
-            while ((line = br.readLine()) != null) {
-                sb.append(line);
-                sb.append("\n");
-            }
-            return sb.toString().trim();
-        }
+        return ProxySourceCache.get(new URL(uri), false).trim();
     }
 
 
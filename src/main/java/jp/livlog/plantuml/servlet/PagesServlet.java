@@ -0,0 +1,94 @@
+/* ========================================================================
+ * PlantUML : a free UML diagram generator
+ * ========================================================================
+ *
+ * Project Info:  https://plantuml.com
+ *
+ * This file is part of PlantUML.
+ *
+ * PlantUML is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PlantUML distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ */
+package jp.livlog.plantuml.servlet;
+
+import java.io.IOException;
+
+import javax.imageio.IIOException;
+
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import jp.livlog.plantuml.servlet.utility.UmlExtractor;
+import jp.livlog.plantuml.servlet.utility.UrlDataExtractor;
+import net.sourceforge.plantuml.FileFormat;
+
+/**
+ * Pages servlet of the webapp.
+ * This servlet produces every image of the diagram source, e.g. every page of a sequence diagram using
+ * {@code newpage}, as ZIP archive.
+ */
+public class PagesServlet extends HttpServlet {
+
+    @Override
+    public void doGet(final HttpServletRequest request, final HttpServletResponse response) throws IOException, ServletException {
+
+        final var url = request.getRequestURI();
+        final var encoded = UrlDataExtractor.getEncodedDiagram(url, "");
+
+        final var variant = request.getParameter("format") == null ? "png" : request.getParameter("format").toLowerCase();
+        final var fmt = "map".equals(variant) ? null : BundleServlet.VARIANTS.get(variant);
+        if (fmt == null) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Unsupported format: " + variant);
+            return;
+        }
+
+        // answer revalidations before decoding or parsing anything
+        final var dr = new DiagramResponse(response, this.getOutputFormat(), request);
+        if (dr.sendNotModified(DiagramResponse.etag(encoded, 0, "pages:" + variant))) {
+            return;
+        }
+
+        // build the UML source from the compressed request parameter
+        final String uml;
+        try {
+            uml = UmlExtractor.getUmlSource(encoded);
+        } catch (final Exception e) {
+            e.printStackTrace();
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Bad Request");
+            return;
+        }
+
+        // generate the response
+        try {
+            dr.sendPages(uml, fmt);
+        } catch (final IIOException e) {
+            // Browser has closed the connection, do nothing
+        }
+    }
+
+
+    /**
+     * Gives the wished output format of the diagram.
+     * This value is used by the DiagramResponse class.
+     *
+     * @return the format for pages responses
+     */
+    public FileFormat getOutputFormat() {
+
+        return FileFormat.UTXT;
+    }
+
+}
@@ -0,0 +1,464 @@
+/* ========================================================================
+ * PlantUML : a free UML diagram generator
+ * ========================================================================
+ *
+ * Project Info:  https://plantuml.com
+ *
+ * This file is part of PlantUML.
+ *
+ * PlantUML is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PlantUML distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ */
+package jp.livlog.plantuml.servlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jakarta.servlet.http.HttpServletResponse;
+import jp.livlog.plantuml.servlet.utility.Configuration;
+import jp.livlog.plantuml.servlet.utility.Gzip;
+import jp.livlog.plantuml.servlet.utility.LruCache;
+import jp.livlog.plantuml.servlet.utility.UmlBlocks;
+import net.sourceforge.plantuml.BlockUml;
+import net.sourceforge.plantuml.FileFormat;
+import net.sourceforge.plantuml.FileFormatOption;
+import net.sourceforge.plantuml.SourceStringReader;
+import net.sourceforge.plantuml.StringUtils;
+import net.sourceforge.plantuml.core.Diagram;
+import net.sourceforge.plantuml.core.DiagramDescription;
+import net.sourceforge.plantuml.core.ImageData;
+import net.sourceforge.plantuml.json.JsonObject;
+import net.sourceforge.plantuml.preproc.Defines;
+import net.sourceforge.plantuml.security.SecurityProfile;
+import net.sourceforge.plantuml.security.SecurityUtils;
+
+/**
+ * Parsed textual UML diagram(s) source which can be exported any number of times.
+ *
+ * Parsing is done once per source and shared by every response type, e.g., images, image maps and syntax checks.
+ * PlantUML diagrams are not thread-safe, therefore every access to a diagram block is synchronized on the block.
+ */
+public final class ParsedDiagram {
+
+    private static class BlockSelection {
+
+        private final BlockUml block;
+
+        private final int      systemIdx;
+
+        BlockSelection(final BlockUml blk, final int idx) {
+
+            this.block = blk;
+            this.systemIdx = idx;
+        }
+    }
+
+    /**
+     * Parsed sources, bounded by PLANTUML_PARSE_CACHE_SIZE entries (256 by default; 0 disables the cache).
+     */
+    private static final LruCache <String, ParsedDiagram> PARSE_CACHE         = new LruCache <>(
+            Configuration.getEnv("PLANTUML_PARSE_CACHE_SIZE", 256),
+            parsed -> 1);
+
+    /**
+     * Number of renders which only parsed the block of the requested diagram.
+     */
+    private static final AtomicLong                       selected            = new AtomicLong();
+
+    /**
+     * Number of renders of a diagram other than the first one which had to parse the preceding blocks.
+     */
+    private static final AtomicLong                       unselected          = new AtomicLong();
+
+    /**
+     * Config fingerprints and kinds of diagrams which can only be parsed without the PLANTUML_CONFIG_FILE prelude.
+     */
+    private static final Set <String>                     CONFIG_INCOMPATIBLE = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Number of sources which had to be parsed twice.
+     */
+    private static final AtomicLong                       doubleParses        = new AtomicLong();
+
+    /**
+     * Number of sources parsed without the PLANTUML_CONFIG_FILE prelude right away.
+     */
+    private static final AtomicLong                       configSkipped       = new AtomicLong();
+
+    /**
+     * Textual UML diagram(s) source.
+     */
+    private final String                                  uml;
+
+    /**
+     * Source reader holding the parsed blocks; `null` if the source contains no diagram.
+     */
+    private final SourceStringReader                      reader;
+
+    private ParsedDiagram(final String uml, final SourceStringReader reader) {
+
+        this.uml = uml;
+        this.reader = reader;
+    }
+
+
+    /**
+     * Get parsed diagram source from the cache or parse it now.
+     *
+     * @param uml textual UML diagram(s) source
+     *
+     * @return parsed diagram source
+     */
+    public static ParsedDiagram parse(final String uml) {
+
+        final var normalized = ParsedDiagram.normalize(uml);
+        final var snapshot = ConfigSnapshot.get();
+        final var key = RenderKey.hash(normalized) + "/" + snapshot.getFingerprint();
+        var parsed = ParsedDiagram.PARSE_CACHE.get(key);
+        if (parsed == null) {
+            parsed = new ParsedDiagram(uml, ParsedDiagram.getSourceStringReader(normalized, snapshot));
+            // sources depending on e.g. the current date must be parsed every time
+            if (StringUtils.isDiagramCacheable(uml)) {
+                ParsedDiagram.PARSE_CACHE.put(key, parsed);
+            }
+        }
+        return parsed;
+    }
+
+
+    /**
+     * Render a specific diagram of a source.
+     * If the diagram is not the first one, only its own block is parsed instead of parsing every
+     * preceding block to count their images, unless the preceding blocks may render several images.
+     * The first diagram is rendered from the complete source, which is shared with the parsed source
+     * cached for the map and check responses.
+     *
+     * @param uml textual UML diagram(s) source
+     * @param idx diagram index to render
+     * @param fmt file format to render
+     *
+     * @return rendered diagram or failure response
+     *
+     * @throws IOException if an input or output exception occurred
+     */
+    public static RenderedDiagram render(final String uml, final int idx, final FileFormat fmt) throws IOException {
+
+        if (idx > 0) {
+            final var block = UmlBlocks.select(ParsedDiagram.normalize(uml), idx);
+            if (block != null) {
+                ParsedDiagram.selected.incrementAndGet();
+                return ParsedDiagram.parse(block).render(0, fmt);
+            }
+            ParsedDiagram.unselected.incrementAndGet();
+        }
+        return ParsedDiagram.parse(uml).render(idx, fmt);
+    }
+
+
+    /**
+     * Forget sources parsed with a previous configuration.
+     *
+     * @param fingerprint fingerprint of the previous configuration
+     */
+    static void purge(final String fingerprint) {
+
+        ParsedDiagram.PARSE_CACHE.removeIf(key -> key.endsWith("/" + fingerprint));
+        ParsedDiagram.CONFIG_INCOMPATIBLE.removeIf(memo -> memo.startsWith(fingerprint + "/"));
+    }
+
+
+    /**
+     * Get parse statistics.
+     *
+     * @return statistics as JSON object
+     */
+    public static JsonObject getStatistics() {
+
+        final var stats = new JsonObject();
+        stats.add("entries", ParsedDiagram.PARSE_CACHE.size());
+        stats.add("hits", ParsedDiagram.PARSE_CACHE.getHits());
+        stats.add("misses", ParsedDiagram.PARSE_CACHE.getMisses());
+        stats.add("blockSelected", ParsedDiagram.selected.get());
+        stats.add("blockNotSelected", ParsedDiagram.unselected.get());
+        stats.add("doubleParses", ParsedDiagram.doubleParses.get());
+        stats.add("configSkipped", ParsedDiagram.configSkipped.get());
+        return stats;
+    }
+
+
+    /**
+     * Normalize line endings, which are meaningless to PlantUML.
+     * Leading blank lines and indentation are kept, since they count for the line numbers of syntax errors.
+     *
+     * @param uml textual UML diagram(s) source
+     *
+     * @return normalized source
+     */
+    private static String normalize(final String uml) {
+
+        return uml.replace("\r\n", "\n");
+    }
+
+
+    /**
+     * Does the source contain any diagram?
+     *
+     * @return true if no diagram was found; otherwise false
+     */
+    public boolean isEmpty() {
+
+        return this.reader == null;
+    }
+
+
+    /**
+     * Render a specific diagram into memory.
+     *
+     * @param idx diagram index to render
+     * @param fmt file format to render
+     *
+     * @return rendered diagram or failure response
+     *
+     * @throws IOException if an input or output exception occurred
+     */
+    public RenderedDiagram render(final int idx, final FileFormat fmt) throws IOException {
+
+        if (this.isEmpty()) {
+            return RenderedDiagram.failure(HttpServletResponse.SC_BAD_REQUEST, "No UML diagram found");
+        }
+        final var blockSelection = this.getOutputBlockSelection(idx);
+
+        if (blockSelection == null) {
+            return RenderedDiagram.failure(HttpServletResponse.SC_BAD_REQUEST, null);
+        }
+        try (var outstream = new ByteArrayOutputStream()) {
+            final var imageData = this.export(blockSelection, outstream, new FileFormatOption(fmt));
+            final var cmap = imageData != null && imageData.containsCMapData() ? imageData.getCMapData("plantuml") : null;
+            final var data = outstream.toByteArray();
+            // compress text formats once here instead of on every response
+            final var gzip = Gzip.isCompressible(fmt) ? Gzip.compress(data) : null;
+            synchronized (blockSelection.block) {
+                return RenderedDiagram.of(
+                        blockSelection.block,
+                        data,
+                        StringUtils.isDiagramCacheable(this.uml),
+                        cmap,
+                        gzip);
+            }
+        }
+    }
+
+
+    /**
+     * Get the number of images of each diagram of the source, e.g. the pages of a sequence diagram using
+     * {@code newpage}.
+     * Only the source is parsed; the diagrams are neither laid out nor exported.
+     *
+     * @return number of images by diagram block; empty if the source contains no diagram
+     */
+    public int[] getNbImages() {
+
+        if (this.isEmpty()) {
+            return new int[0];
+        }
+        final List <BlockUml> blocks = this.reader.getBlocks();
+        final var images = new int[blocks.size()];
+        for (var i = 0; i < images.length; i++) {
+            images[i] = ParsedDiagram.getDiagram(blocks.get(i)).getNbImages();
+        }
+        return images;
+    }
+
+
+    /**
+     * Get the description of the first diagram.
+     * Only the source is parsed; the diagram is neither laid out nor exported, since the description is
+     * known after parsing.
+     *
+     * @return diagram description; `null` if the source contains no diagram
+     */
+    public DiagramDescription getDescription() {
+
+        if (this.isEmpty()) {
+            return null;
+        }
+        return ParsedDiagram.getDiagram(this.reader.getBlocks().get(0)).getDescription();
+    }
+
+
+    /**
+     * Get the syntax errors of the first diagram.
+     *
+     * @return syntax errors; empty if the source contains no diagram or the diagram has no errors
+     */
+    public List <RenderedDiagram.DiagramError> getErrors() {
+
+        if (this.isEmpty()) {
+            return List.of();
+        }
+        return RenderedDiagram.getErrors(ParsedDiagram.getDiagram(this.reader.getBlocks().get(0)));
+    }
+
+
+    /**
+     * Export a diagram block while holding its lock.
+     *
+     * @param blockSelection diagram block and image index to export
+     * @param os target output stream
+     * @param fileFormatOption export file format options
+     *
+     * @return image data of the exported diagram
+     *
+     * @throws IOException if an input or output exception occurred
+     */
+    private ImageData export(
+            final BlockSelection blockSelection,
+            final OutputStream os,
+            final FileFormatOption fileFormatOption) throws IOException {
+
+        synchronized (blockSelection.block) {
+            return blockSelection.block.getDiagram().exportDiagram(os, blockSelection.systemIdx, fileFormatOption);
+        }
+    }
+
+
+    private BlockSelection getOutputBlockSelection(int numImage) {
+
+        if (numImage < 0) {
+            return null;
+        }
+
+        final List <BlockUml> blocks = this.reader.getBlocks();
+        for (final BlockUml b : blocks) {
+            final var nbInSystem = ParsedDiagram.getDiagram(b).getNbImages();
+            if (numImage < nbInSystem) {
+                return new BlockSelection(b, numImage);
+            }
+            numImage -= nbInSystem;
+        }
+
+        return null;
+    }
+
+
+    /**
+     * Get the diagram of a block while holding its lock.
+     *
+     * @param block diagram block
+     *
+     * @return diagram of the block
+     */
+    private static Diagram getDiagram(final BlockUml block) {
+
+        synchronized (block) {
+            return block.getDiagram();
+        }
+    }
+
+
+    /**
+     * Parse a source, wrapping it into {@code @startuml}/{@code @enduml} if it contains no block.
+     * Sources without block are detected before parsing, so normally the source is parsed once.
+     *
+     * @param uml textual UML diagram(s) source
+     * @param snapshot configuration to parse with
+     *
+     * @return source reader; `null` if the source contains no diagram
+     */
+    private static SourceStringReader getSourceStringReader(final String uml, final ConfigSnapshot snapshot) {
+
+        final var kind = UmlBlocks.getKind(uml);
+        if (kind == null) {
+            final var reader = ParsedDiagram.getSourceStringReaderWithConfig("@startuml\n" + uml + "\n@enduml", "uml", snapshot);
+            return reader.getBlocks().isEmpty() ? null : reader;
+        }
+        final var reader = ParsedDiagram.getSourceStringReaderWithConfig(uml, kind, snapshot);
+        if (!reader.getBlocks().isEmpty()) {
+            return reader;
+        }
+        // e.g. a start line PlantUML does not accept
+        ParsedDiagram.doubleParses.incrementAndGet();
+        final var wrapped = ParsedDiagram.getSourceStringReaderWithConfig("@startuml\n" + uml + "\n@enduml", "uml", snapshot);
+        return wrapped.getBlocks().isEmpty() ? null : wrapped;
+    }
+
+
+    /**
+     * Parse a source with the PLANTUML_CONFIG_FILE prelude.
+     * If the first diagram fails with the prelude, the source is parsed again without it.
+     * Kinds of diagrams which always fail with the prelude, e.g. a {@code @startwbs} with a class diagram
+     * command in the prelude, are remembered and parsed without it right away. This is not done for
+     * {@code @startuml}, whose diagram type and so the compatibility depends on the content.
+     *
+     * @param uml textual UML diagram(s) source
+     * @param kind kind of the first diagram
+     * @param snapshot configuration to parse with
+     *
+     * @return source reader
+     */
+    private static SourceStringReader getSourceStringReaderWithConfig(
+            final String uml,
+            final String kind,
+            final ConfigSnapshot snapshot) {
+
+        final var config = snapshot.getConfig();
+        final var defines = ParsedDiagram.getPreProcDefines();
+        if (config.isEmpty()) {
+            return new SourceStringReader(defines, uml);
+        }
+        final var memo = snapshot.getFingerprint() + "/" + kind;
+        if (ParsedDiagram.CONFIG_INCOMPATIBLE.contains(memo)) {
+            ParsedDiagram.configSkipped.incrementAndGet();
+            return new SourceStringReader(defines, uml);
+        }
+        final var reader = new SourceStringReader(defines, uml, config);
+        if (reader.getBlocks().isEmpty() || ParsedDiagram.getDiagram(reader.getBlocks().get(0)).getWarningOrError() == null) {
+            return reader;
+        }
+        ParsedDiagram.doubleParses.incrementAndGet();
+        final var plain = new SourceStringReader(defines, uml);
+        if (!"uml".equals(kind)
+                && !plain.getBlocks().isEmpty()
+                && ParsedDiagram.getDiagram(plain.getBlocks().get(0)).getWarningOrError() == null) {
+            ParsedDiagram.CONFIG_INCOMPATIBLE.add(memo);
+        }
+        return plain;
+    }
+
+
+    /**
+     * Get PlantUML preprocessor defines.
+     *
+     * @return preprocessor defines
+     */
+    private static Defines getPreProcDefines() {
+
+        final Defines defines;
+        if (SecurityUtils.getSecurityProfile() == SecurityProfile.UNSECURE) {
+            // set dirpath to current dir but keep filename and filenameNoExtension undefined
+            defines = Defines.createWithFileName(new java.io.File("dummy.puml"));
+            defines.overrideFilename("");
+        } else {
+            defines = Defines.createEmpty();
+        }
+        return defines;
+    }
+
+}
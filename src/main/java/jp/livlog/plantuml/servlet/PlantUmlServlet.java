@@ -23,18 +23,16 @@
  */
 package jp.livlog.plantuml.servlet;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.HttpURLConnection;
 import java.net.URL;
 
-import javax.net.ssl.HttpsURLConnection;
-
 import jakarta.servlet.ServletException;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import jp.livlog.plantuml.servlet.utility.Configuration;
-import jp.livlog.plantuml.servlet.utility.UmlExtractor;
+import jp.livlog.plantuml.servlet.utility.HttpFetcher;
 import jp.livlog.plantuml.servlet.utility.UrlDataExtractor;
 import net.sourceforge.plantuml.api.PlantumlUtils;
 import net.sourceforge.plantuml.code.NoPlantumlCompressionException;
@@ -270,7 +268,7 @@ public class PlantUmlServlet extends AsciiCoderServlet {
         var map = "";
         if (PlantumlUtils.hasCMapData(text)) {
             try {
-                map = UmlExtractor.extractMap(text);
+                map = RenderCoordinator.renderMap(text, 0);
             } catch (final Exception e) {
                 e.printStackTrace();
             }
@@ -323,32 +321,6 @@ public class PlantUmlServlet extends AsciiCoderServlet {
     }
 
 
-    /**
-     * Get open http connection from URL.
-     *
-     * @param url URL to open connection
-     *
-     * @return open http connection
-     *
-     * @throws IOException if an input or output exception occurred
-     */
-    private static HttpURLConnection getConnection(final URL url) throws IOException {
-
-        if (url.getProtocol().startsWith("https")) {
-            final var con = (HttpsURLConnection) url.openConnection();
-            con.setRequestMethod("GET");
-            con.setReadTimeout(10000); // 10 seconds
-            con.connect();
-            return con;
-        }
-        final var con = (HttpURLConnection) url.openConnection();
-        con.setRequestMethod("GET");
-        con.setReadTimeout(10000); // 10 seconds
-        con.connect();
-        return con;
-    }
-
-
     /**
      * Get image input stream from URL.
      *
@@ -360,10 +332,7 @@ public class PlantUmlServlet extends AsciiCoderServlet {
      */
     private static InputStream getImage(final URL url) throws IOException {
 
-        InputStream is = null;
-        final var con = PlantUmlServlet.getConnection(url);
-        is = con.getInputStream();
-        return is;
+        return new ByteArrayInputStream(HttpFetcher.get(url).getBody());
     }
 
 }
@@ -28,8 +28,10 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.StringWriter;
 import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -48,6 +50,8 @@ import jakarta.servlet.ServletException;
 import jakarta.servlet.http.HttpServlet;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
+import jp.livlog.plantuml.servlet.utility.Gzip;
+import jp.livlog.plantuml.servlet.utility.IOCallable;
 import net.sourceforge.plantuml.FileFormat;
 import net.sourceforge.plantuml.emoji.data.Dummy;
 import net.sourceforge.plantuml.json.Json;
@@ -67,6 +71,11 @@ public class PlantUmlUIHelperServlet extends HttpServlet {
 
     private final Map <String, HelperConsumer> helpers             = new HashMap <>();
 
+    /**
+     * Responses of the helpers and their gzip compressed variants; they never change while the server runs.
+     */
+    private final Map <String, byte[][]>       responseCache       = new ConcurrentHashMap <>();
+
     private String                             svgIconsSpriteCache = null;
 
     public PlantUmlUIHelperServlet() {
@@ -117,10 +126,41 @@ public class PlantUmlUIHelperServlet extends HttpServlet {
     }
 
 
-    private void sendJson(final HttpServletResponse response, final String json) throws IOException {
+    private void sendJson(
+            final HttpServletRequest request,
+            final HttpServletResponse response,
+            final IOCallable <String> json) throws IOException {
 
         this.setDefaultHeader(response, "application/json;charset=UTF-8");
-        response.getWriter().write(json);
+        this.sendCached(request, response, json);
+    }
+
+
+    /**
+     * Send a helper response, compressed if the client accepts it.
+     * The response and its gzip variant are computed on the first request only.
+     *
+     * @param request http request
+     * @param response http response
+     * @param content produces the response content
+     *
+     * @throws IOException if an input or output exception occurred
+     */
+    private void sendCached(
+            final HttpServletRequest request,
+            final HttpServletResponse response,
+            final IOCallable <String> content) throws IOException {
+
+        final var item = request.getParameter("request");
+        var cached = this.responseCache.get(item);
+        if (cached == null) {
+            final var data = content.call().getBytes(StandardCharsets.UTF_8);
+            cached = new byte[][] {
+                    data, Gzip.compress(data)
+            };
+            this.responseCache.put(item, cached);
+        }
+        Gzip.write(request, response, cached[0], cached[1]);
     }
 
 
@@ -135,7 +175,7 @@ public class PlantUmlUIHelperServlet extends HttpServlet {
 
     private void sendIcons(final HttpServletRequest request, final HttpServletResponse response) throws IOException {
 
-        this.sendJson(response, Json.array(this.getIcons()).toString());
+        this.sendJson(request, response, () -> Json.array(this.getIcons()).toString());
     }
 
 
@@ -187,7 +227,7 @@ public class PlantUmlUIHelperServlet extends HttpServlet {
             this.svgIconsSpriteCache = sprite.toString();
         }
         this.setDefaultHeader(response, FileFormat.SVG);
-        response.getWriter().write(this.svgIconsSpriteCache);
+        this.sendCached(request, response, () -> this.svgIconsSpriteCache);
     }
 
 
@@ -202,18 +242,22 @@ public class PlantUmlUIHelperServlet extends HttpServlet {
 
     private void sendEmojis(final HttpServletRequest request, final HttpServletResponse response) throws IOException {
 
-        final var emojis = this.getEmojis();
-        final var json = new JsonArray();
-        for (final String[] emojiUnicodeNamePair : emojis) {
-            json.add(Json.array(emojiUnicodeNamePair));
-        }
-        this.sendJson(response, json.toString());
+        this.sendJson(request, response, () -> {
+            final var emojis = this.getEmojis();
+            final var json = new JsonArray();
+            for (final String[] emojiUnicodeNamePair : emojis) {
+                json.add(Json.array(emojiUnicodeNamePair));
+            }
+            return json.toString();
+        });
     }
 
 
     private void sendThemes(final HttpServletRequest request, final HttpServletResponse response) throws IOException {
 
-        final var themes = ThemeUtils.getAllThemeNames().toArray(new String[0]);
-        this.sendJson(response, Json.array(themes).toString());
+        this.sendJson(request, response, () -> {
+            final var themes = ThemeUtils.getAllThemeNames().toArray(new String[0]);
+            return Json.array(themes).toString();
+        });
     }
 }
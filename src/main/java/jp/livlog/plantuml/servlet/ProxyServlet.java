@@ -23,13 +23,9 @@
  */
 package jp.livlog.plantuml.servlet;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.util.stream.Collectors;
 
 import javax.imageio.IIOException;
 
@@ -37,6 +33,9 @@ import jakarta.servlet.ServletException;
 import jakarta.servlet.http.HttpServlet;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
+import jp.livlog.plantuml.servlet.utility.BoundedExecutor;
+import jp.livlog.plantuml.servlet.utility.Configuration;
+import jp.livlog.plantuml.servlet.utility.ServiceUnavailableException;
 import net.sourceforge.plantuml.FileFormat;
 
 /**
@@ -46,6 +45,16 @@ import net.sourceforge.plantuml.FileFormat;
  */
 public class ProxyServlet extends HttpServlet {
 
+    /**
+     * Loads remote diagram sources of asynchronous requests with PLANTUML_FETCH_THREADS workers; at most
+     * PLANTUML_FETCH_QUEUE_SIZE loads wait up to PLANTUML_FETCH_QUEUE_WAIT milliseconds for a worker.
+     */
+    private static final BoundedExecutor FETCH_EXECUTOR = new BoundedExecutor(
+            "plantuml-fetch",
+            (int) Math.max(1, Configuration.getEnv("PLANTUML_FETCH_THREADS", 16)),
+            (int) Configuration.getEnv("PLANTUML_FETCH_QUEUE_SIZE", 64),
+            Configuration.getEnv("PLANTUML_FETCH_QUEUE_WAIT", 10000));
+
     public static boolean forbiddenURL(final String full) {
 
         if ((full == null) || (full.startsWith("https://") == false && full.startsWith("http://") == false) || full.matches("^https?://[-#.0-9:\\[\\]+]+/.*")) {
@@ -106,11 +115,30 @@ public class ProxyServlet extends HttpServlet {
             return; // error is already set/handled inside `validateURL`
         }
 
+        final var dr = new DiagramResponse(response, this.getOutputFormat(fmt), request);
+        if (DiagramResponse.isAsync(request)) {
+            // fetch diagram from URL without holding the container thread
+            final var asyncContext = request.startAsync();
+            final var uml = ProxyServlet.FETCH_EXECUTOR.submit(() -> this.getSource(srcUrl));
+            if ("map".equals(fmt)) {
+                dr.sendMap(uml, idx, asyncContext);
+            } else {
+                dr.sendDiagram(uml, idx, asyncContext);
+            }
+            return;
+        }
+
         // fetch diagram from URL
-        final var uml = this.getSource(srcUrl);
+        final String uml;
+        try {
+            uml = this.getSource(srcUrl);
+        } catch (final ServiceUnavailableException e) {
+            response.setHeader("Retry-After", String.valueOf(e.getRetryAfter()));
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, e.getMessage());
+            return;
+        }
 
         // generate the response
-        final var dr = new DiagramResponse(response, this.getOutputFormat(fmt), request);
         try {
             // special handling for the MAP since it's not using "#sendDiagram()" like the other types
             if ("map".equals(fmt)) {
@@ -136,10 +164,7 @@ public class ProxyServlet extends HttpServlet {
      */
     private String getSource(final URL url) throws IOException {
 
-        final var conn = ProxyServlet.getConnection(url);
-        try (var br = new BufferedReader(new InputStreamReader(conn.getInputStream()))) {
-            return br.lines().collect(Collectors.joining("\n"));
-        }
+        return ProxySourceCache.get(url, true);
     }
 
 
@@ -175,32 +200,4 @@ public class ProxyServlet extends HttpServlet {
                 return FileFormat.PNG;
         }
     }
-
-
-    /**
-     * Get open http connection from URL.
-     *
-     * @param url URL to open connection
-     *
-     * @return open http connection
-     *
-     * @throws IOException if an input or output exception occurred
-     */
-    public static HttpURLConnection getConnection(final URL url) throws IOException {
-
-        final var conn = (HttpURLConnection) url.openConnection();
-        conn.setRequestMethod("GET");
-        final var token = System.getenv("HTTP_AUTHORIZATION");
-        if (token != null) {
-            conn.setRequestProperty("Authorization", token);
-        }
-        final var timeoutString = System.getenv("HTTP_PROXY_READ_TIMEOUT");
-        var timeout = 10000; // 10 seconds as default
-        if (timeoutString != null && timeoutString.matches("^\\d+$")) {
-            timeout = Integer.parseInt(timeoutString);
-        }
-        conn.setReadTimeout(timeout);
-        conn.connect();
-        return conn;
-    }
 }
@@ -0,0 +1,331 @@
+/* ========================================================================
+ * PlantUML : a free UML diagram generator
+ * ========================================================================
+ *
+ * Project Info:  https://plantuml.com
+ *
+ * This file is part of PlantUML.
+ *
+ * PlantUML is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PlantUML distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ */
+package jp.livlog.plantuml.servlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jp.livlog.plantuml.servlet.utility.BoundedExecutor;
+import jp.livlog.plantuml.servlet.utility.Configuration;
+import jp.livlog.plantuml.servlet.utility.Futures;
+import jp.livlog.plantuml.servlet.utility.HttpFetcher;
+import jp.livlog.plantuml.servlet.utility.LruCache;
+import jp.livlog.plantuml.servlet.utility.SingleFlight;
+import jp.livlog.plantuml.servlet.utility.UmlBlocks;
+import net.sourceforge.plantuml.json.JsonObject;
+
+/**
+ * Cache of diagram sources loaded by the proxy, keyed by their URL.
+ * A source younger than PLANTUML_PROXY_CACHE_MAX_AGE is served without asking the remote server.
+ * Within the following PLANTUML_PROXY_CACHE_STALE milliseconds it is still served right away while a
+ * background refresh revalidates it; after that it is revalidated before it is served.
+ * Revalidation uses conditional requests with the remote ETag and Last-Modified, so unchanged sources
+ * are not downloaded again. As the render cache is keyed by the source content, an unchanged source
+ * is never rendered again either.
+ * Concurrent loads of the same URL share a single request to the remote server.
+ * Only the diagram blocks of a loaded page are kept, so the cache does not grow with the size of the
+ * HTML or Markdown around them.
+ */
+public final class ProxySourceCache {
+
+    /**
+     * Loaded diagram source and its validators.
+     */
+    private static final class Entry {
+
+        private final String source;
+
+        private final String etag;
+
+        private final String lastModified;
+
+        /**
+         * Time in milliseconds when the source was loaded or last revalidated.
+         */
+        private final long   fetched;
+
+        Entry(final String source, final String etag, final String lastModified, final long fetched) {
+
+            this.source = source;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.fetched = fetched;
+        }
+
+    }
+
+    /**
+     * Recently used sources, bounded by PLANTUML_PROXY_CACHE_SIZE bytes (16 MiB by default).
+     */
+    private static final LruCache <String, Entry>     SOURCES          = new LruCache <>(
+            Configuration.getEnv("PLANTUML_PROXY_CACHE_SIZE", 16L * 1024 * 1024),
+            entry -> 128 + entry.source.length() * 2L);
+
+    /**
+     * Time in milliseconds a source is served without revalidation.
+     */
+    private static final long                         MAX_AGE          = Configuration.getEnv("PLANTUML_PROXY_CACHE_MAX_AGE", 60000);
+
+    /**
+     * Time in milliseconds after {@link #MAX_AGE} a source is served while it is revalidated in the
+     * background.
+     */
+    private static final long                         STALE            = Configuration.getEnv("PLANTUML_PROXY_CACHE_STALE", 600000);
+
+    /**
+     * Loads currently in flight, keyed by normalized URL.
+     */
+    private static final SingleFlight <String, Entry> IN_FLIGHT        = new SingleFlight <>();
+
+    private static final BoundedExecutor              REFRESH_EXECUTOR = new BoundedExecutor("plantuml-proxy-refresh", 2, 64, 0);
+
+    /**
+     * URLs with a background refresh in progress.
+     */
+    private static final Set <String>                 REFRESHING       = ConcurrentHashMap.newKeySet();
+
+    private static final AtomicLong                   fresh            = new AtomicLong();
+
+    private static final AtomicLong                   stale            = new AtomicLong();
+
+    private static final AtomicLong                   revalidated      = new AtomicLong();
+
+    private static final AtomicLong                   downloaded       = new AtomicLong();
+
+    private static final AtomicLong                   refreshFailures  = new AtomicLong();
+
+    private ProxySourceCache() {
+
+    }
+
+
+    /**
+     * Get the diagram source of an URL.
+     * Sources loaded with the HTTP_AUTHORIZATION token are cached apart from the others, so they are only
+     * served to the callers allowed to send it.
+     *
+     * @param url source URL
+     * @param authorize send the HTTP_AUTHORIZATION token, if set, with the request
+     *
+     * @return textual diagram source
+     *
+     * @throws IOException if the source had to be loaded and loading it failed
+     */
+    public static String get(final URL url, final boolean authorize) throws IOException {
+
+        final var key = (authorize ? "authorized " : "") + ProxySourceCache.normalize(url);
+        final var cached = ProxySourceCache.SOURCES.get(key);
+        if (cached != null) {
+            final var age = System.currentTimeMillis() - cached.fetched;
+            if (age < ProxySourceCache.MAX_AGE) {
+                ProxySourceCache.fresh.incrementAndGet();
+                return cached.source;
+            }
+            if (age < ProxySourceCache.MAX_AGE + ProxySourceCache.STALE) {
+                ProxySourceCache.stale.incrementAndGet();
+                ProxySourceCache.refresh(url, authorize, key, cached);
+                return cached.source;
+            }
+        }
+        return ProxySourceCache.load(url, authorize, key, cached).source;
+    }
+
+
+    /**
+     * Get proxy cache statistics.
+     *
+     * @return statistics as JSON object
+     */
+    public static JsonObject getStatistics() {
+
+        final var stats = new JsonObject();
+        stats.add("entries", ProxySourceCache.SOURCES.size());
+        stats.add("bytes", ProxySourceCache.SOURCES.weight());
+        stats.add("fresh", ProxySourceCache.fresh.get());
+        stats.add("stale", ProxySourceCache.stale.get());
+        stats.add("revalidated", ProxySourceCache.revalidated.get());
+        stats.add("downloaded", ProxySourceCache.downloaded.get());
+        stats.add("refreshFailures", ProxySourceCache.refreshFailures.get());
+        stats.add("fetches", ProxySourceCache.IN_FLIGHT.getLeaders());
+        stats.add("deduplicated", ProxySourceCache.IN_FLIGHT.getCoalesced());
+        stats.add("inFlight", ProxySourceCache.IN_FLIGHT.getInFlight());
+        return stats;
+    }
+
+
+    /**
+     * Revalidate a stale source in the background, at most once at a time per URL.
+     *
+     * @param url source URL
+     * @param authorize send the HTTP_AUTHORIZATION token
+     * @param key cache key
+     * @param cached stale cache entry
+     */
+    private static void refresh(final URL url, final boolean authorize, final String key, final Entry cached) {
+
+        if (!ProxySourceCache.REFRESHING.add(key)) {
+            return;
+        }
+        ProxySourceCache.REFRESH_EXECUTOR.submit(() -> ProxySourceCache.load(url, authorize, key, cached))
+                .whenComplete((entry, failure) -> {
+                    ProxySourceCache.REFRESHING.remove(key);
+                    if (failure != null) {
+                        // keep serving the stale source until it has to be revalidated synchronously
+                        ProxySourceCache.refreshFailures.incrementAndGet();
+                    }
+                });
+    }
+
+
+    /**
+     * Load a source or wait for the load of the same URL already in flight.
+     *
+     * @param url source URL
+     * @param authorize send the HTTP_AUTHORIZATION token
+     * @param key cache key
+     * @param cached previous cache entry; `null` if none
+     *
+     * @return current cache entry
+     *
+     * @throws IOException if loading failed
+     */
+    private static Entry load(final URL url, final boolean authorize, final String key, final Entry cached) throws IOException {
+
+        return Futures.await(ProxySourceCache.IN_FLIGHT.submit(key, () -> {
+            // the leader loads on its own thread; followers block on the shared result meanwhile
+            try {
+                return CompletableFuture.completedFuture(ProxySourceCache.fetch(url, authorize, key, cached));
+            } catch (final IOException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        }));
+    }
+
+
+    /**
+     * Load a source, conditionally if a previous version is known.
+     *
+     * @param url source URL
+     * @param authorize send the HTTP_AUTHORIZATION token
+     * @param key cache key
+     * @param cached previous cache entry; `null` if none
+     *
+     * @return current cache entry
+     *
+     * @throws IOException if loading failed
+     */
+    private static Entry fetch(final URL url, final boolean authorize, final String key, final Entry cached) throws IOException {
+
+        final var headers = new HashMap <String, String>();
+        if (authorize) {
+            headers.putAll(HttpFetcher.getAuthorization());
+        }
+        if (cached != null && cached.etag != null) {
+            headers.put("If-None-Match", cached.etag);
+        }
+        if (cached != null && cached.lastModified != null) {
+            headers.put("If-Modified-Since", cached.lastModified);
+        }
+        final var response = HttpFetcher.get(url, headers);
+        final Entry entry;
+        if (response.getStatus() == 304 && cached != null) {
+            ProxySourceCache.revalidated.incrementAndGet();
+            final var etag = response.getHeader("ETag");
+            final var lastModified = response.getHeader("Last-Modified");
+            entry = new Entry(
+                    cached.source,
+                    etag != null ? etag : cached.etag,
+                    lastModified != null ? lastModified : cached.lastModified,
+                    System.currentTimeMillis());
+        } else {
+            ProxySourceCache.downloaded.incrementAndGet();
+            entry = new Entry(
+                    ProxySourceCache.getSource(response),
+                    response.getHeader("ETag"),
+                    response.getHeader("Last-Modified"),
+                    System.currentTimeMillis());
+        }
+        final var cacheControl = response.getHeader("Cache-Control");
+        if (cacheControl != null && cacheControl.contains("no-store")) {
+            ProxySourceCache.SOURCES.remove(key);
+        } else {
+            ProxySourceCache.SOURCES.put(key, entry);
+        }
+        return entry;
+    }
+
+
+    /**
+     * Get the diagram blocks of a loaded page.
+     *
+     * @param response loaded page
+     *
+     * @return diagram blocks; the whole page if it contains no block
+     *
+     * @throws IOException if the page could not be read
+     */
+    private static String getSource(final HttpFetcher.Response response) throws IOException {
+
+        final var blocks = UmlBlocks.extract(
+                new InputStreamReader(new ByteArrayInputStream(response.getBody()), StandardCharsets.UTF_8));
+        return blocks != null ? blocks : response.getText();
+    }
+
+
+    /**
+     * Normalize an URL, so that different spellings of the same URL share the cache entry and the load.
+     *
+     * @param url source URL
+     *
+     * @return URL with lower case scheme and host, without default port and fragment
+     */
+    private static String normalize(final URL url) {
+
+        try {
+            final var uri = url.toURI().normalize();
+            final var scheme = uri.getScheme().toLowerCase(Locale.ROOT);
+            var port = uri.getPort();
+            if (("http".equals(scheme) && port == 80) || ("https".equals(scheme) && port == 443)) {
+                port = -1;
+            }
+            final var path = uri.getRawPath() == null || uri.getRawPath().isEmpty() ? "/" : uri.getRawPath();
+            final var query = uri.getRawQuery() == null ? "" : "?" + uri.getRawQuery();
+            final var host = uri.getHost() == null ? "" : uri.getHost().toLowerCase(Locale.ROOT);
+            return scheme + "://" + host + (port < 0 ? "" : ":" + port) + path + query;
+        } catch (final URISyntaxException e) {
+            return url.toString();
+        }
+    }
+
+}
@@ -0,0 +1,382 @@
+/* ========================================================================
+ * PlantUML : a free UML diagram generator
+ * ========================================================================
+ *
+ * Project Info:  https://plantuml.com
+ *
+ * This file is part of PlantUML.
+ *
+ * PlantUML is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PlantUML distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ */
+package jp.livlog.plantuml.servlet;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jp.livlog.plantuml.servlet.utility.BoundedExecutor;
+import jp.livlog.plantuml.servlet.utility.Configuration;
+import jp.livlog.plantuml.servlet.utility.DeadlineExceededException;
+import jp.livlog.plantuml.servlet.utility.Futures;
+import jp.livlog.plantuml.servlet.utility.IOCallable;
+import jp.livlog.plantuml.servlet.utility.LruCache;
+import jp.livlog.plantuml.servlet.utility.ServiceUnavailableException;
+import jp.livlog.plantuml.servlet.utility.SingleFlight;
+import net.sourceforge.plantuml.FileFormat;
+import net.sourceforge.plantuml.json.JsonObject;
+
+/**
+ * Shared entry point for every diagram render.
+ * Serves rendered diagrams from the cache and makes sure that concurrent requests for the same diagram
+ * result in a single render whose output is shared by all of them.
+ * Renders run on a dedicated, bounded worker pool instead of the container request threads and are abandoned
+ * if they exceed the render deadline.
+ */
+public final class RenderCoordinator {
+
+    /**
+     * Render work of a single diagram.
+     */
+    public interface Renderer {
+
+        RenderedDiagram render() throws IOException;
+    }
+
+    /**
+     * Rendered diagrams, bounded by PLANTUML_RENDER_CACHE_SIZE bytes (64 MiB by default; 0 disables the cache).
+     */
+    private static final LruCache <RenderKey, RenderedDiagram>      RENDER_CACHE = new LruCache <>(
+            Configuration.getEnv("PLANTUML_RENDER_CACHE_SIZE", 64L * 1024 * 1024),
+            RenderedDiagram::weight);
+
+    /**
+     * Error images of diagram sources with syntax errors, kept apart from the render cache so that half-typed
+     * sources from editors do not evict working diagrams. Bounded by PLANTUML_ERROR_CACHE_SIZE bytes (8 MiB by
+     * default; 0 disables the cache) and PLANTUML_ERROR_CACHE_TTL milliseconds (1 minute by default).
+     */
+    private static final LruCache <RenderKey, RenderedDiagram>      ERROR_CACHE  = new LruCache <>(
+            Configuration.getEnv("PLANTUML_ERROR_CACHE_SIZE", 8L * 1024 * 1024),
+            RenderedDiagram::weight,
+            Configuration.getEnv("PLANTUML_ERROR_CACHE_TTL", 60000));
+
+    /**
+     * Renders currently in progress.
+     */
+    private static final SingleFlight <RenderKey, RenderedDiagram> IN_FLIGHT    = new SingleFlight <>();
+
+    /**
+     * Render worker pool.
+     * PLANTUML_RENDER_THREADS workers (number of CPUs by default), PLANTUML_RENDER_QUEUE_SIZE waiting renders
+     * (64 by default) and at most PLANTUML_RENDER_QUEUE_WAIT milliseconds waiting time (10 seconds by default).
+     */
+    private static final BoundedExecutor                           EXECUTOR     = new BoundedExecutor(
+            "plantuml-render",
+            (int) Math.max(1, Configuration.getEnv("PLANTUML_RENDER_THREADS", Runtime.getRuntime().availableProcessors())),
+            (int) Configuration.getEnv("PLANTUML_RENDER_QUEUE_SIZE", 64),
+            Configuration.getEnv("PLANTUML_RENDER_QUEUE_WAIT", 10000));
+
+    /**
+     * Maximum render time in milliseconds set by PLANTUML_RENDER_DEADLINE (0 by default: unlimited).
+     */
+    private static final long                                      DEADLINE     = Configuration.getEnv("PLANTUML_RENDER_DEADLINE", 0);
+
+    /**
+     * Time in milliseconds a diagram source which exceeded the render deadline is refused without rendering it
+     * again, set by PLANTUML_RENDER_DEADLINE_PENALTY (60 seconds by default).
+     */
+    private static final long                                      PENALTY      = Configuration.getEnv("PLANTUML_RENDER_DEADLINE_PENALTY", 60000);
+
+    /**
+     * Diagram sources which recently exceeded the render deadline and the time their penalty ends.
+     */
+    private static final LruCache <String, Long>                   TIMED_OUT    = new LruCache <>(1024, until -> 1);
+
+    /**
+     * Maximum number of renders a single request, e.g. a batch or the pages of a diagram, runs at the same time,
+     * set by PLANTUML_REQUEST_PARALLELISM (number of CPUs by default), so a request never floods the render queue
+     * shared with other requests.
+     */
+    public static final int                                        PARALLELISM  = (int) Math.max(1,
+            Configuration.getEnv("PLANTUML_REQUEST_PARALLELISM", Runtime.getRuntime().availableProcessors()));
+
+    private static final AtomicLong                                timeouts     = new AtomicLong();
+
+    private static final AtomicLong                                refused      = new AtomicLong();
+
+    private RenderCoordinator() {
+
+    }
+
+
+    /**
+     * Get the image map of a diagram.
+     * Image maps are a by-product of the PNG export, so the map is taken from the PNG render, which is
+     * cached and shared with the /png and /map responses of the same diagram.
+     *
+     * @param uml textual UML diagram(s) source
+     * @param idx diagram index
+     *
+     * @return image map in HTML format; `null` if the diagram has no links
+     *
+     * @throws IOException if an input or output exception occurred
+     * @throws ServiceUnavailableException if the render pool is overloaded or the deadline was exceeded
+     */
+    public static String renderMap(final String uml, final int idx) throws IOException {
+
+        return RenderCoordinator.render(
+                RenderKey.of(uml, idx, FileFormat.PNG),
+                () -> ParsedDiagram.render(uml, idx, FileFormat.PNG),
+                0).getCMap();
+    }
+
+
+    /**
+     * Run work other than a render, e.g. parsing a source, on the render pool, so it is bounded by the same
+     * admission control and deadline as the renders.
+     *
+     * @param <V> result type
+     * @param work work to run
+     *
+     * @return work result; fails with {@link ServiceUnavailableException} if the render pool is overloaded or with
+     *         {@link DeadlineExceededException} if the deadline was exceeded
+     */
+    public static <V> CompletableFuture <V> submit(final IOCallable <V> work) {
+
+        return RenderCoordinator.EXECUTOR.submit(work, RenderCoordinator.DEADLINE);
+    }
+
+
+    /**
+     * Get rendered diagram from the cache, from a render already in progress or render it now.
+     *
+     * @param key render key; if `null` the diagram is neither cached nor shared and always rendered
+     * @param renderer render work
+     * @param deadline maximum time in milliseconds the caller waits for the diagram; if {@code 0} the
+     *            server-wide render deadline applies
+     *
+     * @return rendered diagram or failure response
+     *
+     * @throws IOException if an input or output exception occurred
+     * @throws ServiceUnavailableException if the render pool is overloaded or the deadline was exceeded
+     */
+    public static RenderedDiagram render(final RenderKey key, final Renderer renderer, final long deadline) throws IOException {
+
+        return Futures.await(RenderCoordinator.renderAsync(key, renderer, deadline));
+    }
+
+
+    /**
+     * Get rendered diagram from the cache, from a render already in progress or start rendering it now
+     * without blocking the calling thread.
+     *
+     * @param key render key; if `null` the diagram is neither cached nor shared and always rendered
+     * @param renderer render work
+     * @param deadline maximum time in milliseconds the caller waits for the diagram; if {@code 0} the
+     *            server-wide render deadline applies
+     *
+     * @return rendered diagram or failure response; fails with {@link ServiceUnavailableException} if the render
+     *         pool is overloaded or with {@link DeadlineExceededException} if the deadline was exceeded
+     */
+    public static CompletableFuture <RenderedDiagram> renderAsync(final RenderKey key, final Renderer renderer, final long deadline) {
+
+        if (key == null) {
+            return RenderCoordinator.withDeadline(
+                    RenderCoordinator.EXECUTOR.submit(renderer::render, RenderCoordinator.DEADLINE),
+                    deadline);
+        }
+        final var cached = RenderCoordinator.getCached(key);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+        final var penalty = RenderCoordinator.getPenalty(key);
+        if (penalty > 0) {
+            RenderCoordinator.refused.incrementAndGet();
+            return CompletableFuture.failedFuture(new DeadlineExceededException(
+                    "Diagram recently exceeded the render deadline",
+                    Math.max(1, TimeUnit.MILLISECONDS.toSeconds(penalty))));
+        }
+        return RenderCoordinator.withDeadline(RenderCoordinator.IN_FLIGHT.submit(key, () -> RenderCoordinator.EXECUTOR.submit(() -> {
+            final var rendered = renderer.render();
+            // publish to the cache before the in flight entry is removed
+            if (rendered.isErrorDiagram()) {
+                RenderCoordinator.ERROR_CACHE.put(key, rendered);
+            } else if (!rendered.isFailure()) {
+                RenderCoordinator.RENDER_CACHE.put(key, rendered);
+                DiskRenderCache.put(key, rendered);
+            }
+            return rendered;
+        }, RenderCoordinator.DEADLINE).whenComplete((rendered, failure) -> {
+            if (Futures.unwrap(failure) instanceof DeadlineExceededException) {
+                RenderCoordinator.timeouts.incrementAndGet();
+                RenderCoordinator.TIMED_OUT.put(RenderCoordinator.getSourceKey(key), System.currentTimeMillis() + RenderCoordinator.PENALTY);
+            }
+        })), deadline);
+    }
+
+
+    /**
+     * Get rendered diagram or error image from the caches.
+     * Diagrams found on disk are not copied into memory but streamed from their cache file.
+     *
+     * @param key render key
+     *
+     * @return cached diagram; otherwise `null`
+     */
+    private static RenderedDiagram getCached(final RenderKey key) {
+
+        var cached = RenderCoordinator.RENDER_CACHE.get(key);
+        if (cached == null && RenderCoordinator.ERROR_CACHE.isEnabled()) {
+            cached = RenderCoordinator.ERROR_CACHE.get(key);
+        }
+        if (cached == null) {
+            cached = DiskRenderCache.get(key);
+        }
+        return cached;
+    }
+
+
+    /**
+     * Limit the time a caller waits for a render shared with other callers.
+     * The render itself is only abandoned by the server-wide deadline, a shorter caller deadline just stops
+     * waiting for it.
+     *
+     * @param rendered pending render
+     * @param deadline maximum time in milliseconds to wait; if {@code 0} or not shorter than the server-wide
+     *            deadline unlimited
+     *
+     * @return pending render of this caller
+     */
+    private static CompletableFuture <RenderedDiagram> withDeadline(final CompletableFuture <RenderedDiagram> rendered, final long deadline) {
+
+        if (deadline <= 0 || (RenderCoordinator.DEADLINE > 0 && deadline >= RenderCoordinator.DEADLINE)) {
+            return rendered;
+        }
+        return rendered.copy().orTimeout(deadline, TimeUnit.MILLISECONDS).exceptionallyCompose(failure -> {
+            if (Futures.unwrap(failure) instanceof TimeoutException) {
+                return CompletableFuture.failedFuture(new DeadlineExceededException(
+                        "Render deadline of " + deadline + " ms exceeded", 1));
+            }
+            return CompletableFuture.failedFuture(failure);
+        });
+    }
+
+
+    /**
+     * Get the remaining penalty of a diagram source which recently exceeded the render deadline.
+     *
+     * @param key render key
+     *
+     * @return remaining penalty in milliseconds; {@code 0} if none
+     */
+    private static long getPenalty(final RenderKey key) {
+
+        if (RenderCoordinator.DEADLINE <= 0) {
+            return 0;
+        }
+        final var until = RenderCoordinator.TIMED_OUT.get(RenderCoordinator.getSourceKey(key));
+        if (until == null) {
+            return 0;
+        }
+        return Math.max(0, until - System.currentTimeMillis());
+    }
+
+
+    /**
+     * Get the key of the diagram source, independent of the requested index and format, since a source which
+     * is too expensive in one format is too expensive in every format.
+     *
+     * @param key render key
+     *
+     * @return source key
+     */
+    private static String getSourceKey(final RenderKey key) {
+
+        return key.getSourceHash() + "/" + key.getConfigFingerprint();
+    }
+
+
+    /**
+     * Purge diagrams rendered with a previous configuration from the in-memory caches.
+     * The disk cache is left to its least recently used eviction, since its index does not know the
+     * configuration of its entries.
+     *
+     * @param fingerprint fingerprint of the previous configuration
+     */
+    static void purge(final String fingerprint) {
+
+        RenderCoordinator.RENDER_CACHE.removeIf(key -> fingerprint.equals(key.getConfigFingerprint()));
+        RenderCoordinator.ERROR_CACHE.removeIf(key -> fingerprint.equals(key.getConfigFingerprint()));
+        RenderCoordinator.TIMED_OUT.removeIf(key -> key.endsWith("/" + fingerprint));
+    }
+
+
+    /**
+     * Get render statistics.
+     *
+     * @return statistics as JSON object
+     */
+    public static JsonObject getStatistics() {
+
+        final var cache = new JsonObject();
+        cache.add("entries", RenderCoordinator.RENDER_CACHE.size());
+        cache.add("bytes", RenderCoordinator.RENDER_CACHE.weight());
+        cache.add("hits", RenderCoordinator.RENDER_CACHE.getHits());
+        cache.add("misses", RenderCoordinator.RENDER_CACHE.getMisses());
+        cache.add("evictions", RenderCoordinator.RENDER_CACHE.getEvictions());
+
+        final var errorCache = new JsonObject();
+        errorCache.add("entries", RenderCoordinator.ERROR_CACHE.size());
+        errorCache.add("bytes", RenderCoordinator.ERROR_CACHE.weight());
+        errorCache.add("hits", RenderCoordinator.ERROR_CACHE.getHits());
+        errorCache.add("misses", RenderCoordinator.ERROR_CACHE.getMisses());
+        errorCache.add("evictions", RenderCoordinator.ERROR_CACHE.getEvictions());
+        errorCache.add("expired", RenderCoordinator.ERROR_CACHE.getExpired());
+
+        final var coalescing = new JsonObject();
+        coalescing.add("inFlight", RenderCoordinator.IN_FLIGHT.getInFlight());
+        coalescing.add("rendered", RenderCoordinator.IN_FLIGHT.getLeaders());
+        coalescing.add("coalesced", RenderCoordinator.IN_FLIGHT.getCoalesced());
+
+        final var executor = new JsonObject();
+        executor.add("threads", RenderCoordinator.EXECUTOR.getThreads());
+        executor.add("active", RenderCoordinator.EXECUTOR.getActive());
+        executor.add("queueDepth", RenderCoordinator.EXECUTOR.getQueueDepth());
+        executor.add("accepted", RenderCoordinator.EXECUTOR.getAccepted());
+        executor.add("rejected", RenderCoordinator.EXECUTOR.getRejected());
+        executor.add("queueWaitExceeded", RenderCoordinator.EXECUTOR.getExpired());
+        executor.add("abandoned", RenderCoordinator.EXECUTOR.getAbandoned());
+        executor.add("totalQueueWaitMillis", RenderCoordinator.EXECUTOR.getTotalWait());
+        executor.add("maxQueueWaitMillis", RenderCoordinator.EXECUTOR.getMaxWait());
+
+        final var deadline = new JsonObject();
+        deadline.add("millis", RenderCoordinator.DEADLINE);
+        deadline.add("timeouts", RenderCoordinator.timeouts.get());
+        deadline.add("refused", RenderCoordinator.refused.get());
+
+        final var stats = new JsonObject();
+        stats.add("cache", cache);
+        stats.add("errorCache", errorCache);
+        stats.add("diskCache", DiskRenderCache.getStatistics());
+        stats.add("parse", ParsedDiagram.getStatistics());
+        stats.add("coalescing", coalescing);
+        stats.add("executor", executor);
+        stats.add("deadline", deadline);
+        return stats;
+    }
+
+}
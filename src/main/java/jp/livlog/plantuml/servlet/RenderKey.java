@@ -0,0 +1,169 @@
+/* ========================================================================
+ * PlantUML : a free UML diagram generator
+ * ========================================================================
+ *
+ * Project Info:  https://plantuml.com
+ *
+ * This file is part of PlantUML.
+ *
+ * PlantUML is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PlantUML distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ */
+package jp.livlog.plantuml.servlet;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Objects;
+
+import net.sourceforge.plantuml.FileFormat;
+import net.sourceforge.plantuml.StringUtils;
+
+/**
+ * Identifies a rendered diagram: the same key always results in the same response bytes.
+ */
+public final class RenderKey {
+
+    /**
+     * Content hash of the textual UML source.
+     */
+    private final String     sourceHash;
+
+    /**
+     * Diagram index inside the source.
+     */
+    private final int        index;
+
+    /**
+     * Output format.
+     */
+    private final FileFormat format;
+
+    /**
+     * Fingerprint of the PlantUML configuration used for rendering.
+     */
+    private final String     configFingerprint;
+
+    /**
+     * Create new render key.
+     *
+     * @param source textual UML source
+     * @param idx diagram index
+     * @param fmt output format
+     * @param fingerprint configuration fingerprint
+     */
+    public RenderKey(final String source, final int idx, final FileFormat fmt, final String fingerprint) {
+
+        this.sourceHash = RenderKey.hash(source);
+        this.index = idx;
+        this.format = fmt;
+        this.configFingerprint = fingerprint;
+    }
+
+
+    /**
+     * Create the render key of a diagram with the current configuration.
+     *
+     * @param uml textual UML source
+     * @param idx diagram index
+     * @param fmt output format
+     *
+     * @return render key; `null` if the diagram depends on e.g. the current date or remote includes and
+     *         must therefore be rendered every time
+     */
+    public static RenderKey of(final String uml, final int idx, final FileFormat fmt) {
+
+        if (!StringUtils.isDiagramCacheable(uml)) {
+            return null;
+        }
+        return new RenderKey(uml, idx, fmt, ConfigSnapshot.get().getFingerprint());
+    }
+
+
+    /**
+     * Get SHA-256 hash of a string.
+     *
+     * @param text arbitrary text
+     *
+     * @return lower case hex encoded hash
+     */
+    public static String hash(final String text) {
+
+        try {
+            final var digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(text.getBytes(StandardCharsets.UTF_8)));
+        } catch (final NoSuchAlgorithmException e) {
+            // every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+
+    public String getSourceHash() {
+
+        return this.sourceHash;
+    }
+
+
+    public int getIndex() {
+
+        return this.index;
+    }
+
+
+    public FileFormat getFormat() {
+
+        return this.format;
+    }
+
+
+    public String getConfigFingerprint() {
+
+        return this.configFingerprint;
+    }
+
+
+    @Override
+    public boolean equals(final Object obj) {
+
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof RenderKey)) {
+            return false;
+        }
+        final var other = (RenderKey) obj;
+        return this.index == other.index
+                && this.format == other.format
+                && this.sourceHash.equals(other.sourceHash)
+                && Objects.equals(this.configFingerprint, other.configFingerprint);
+    }
+
+
+    @Override
+    public int hashCode() {
+
+        return Objects.hash(this.sourceHash, this.index, this.format, this.configFingerprint);
+    }
+
+
+    @Override
+    public String toString() {
+
+        return this.sourceHash + "/" + this.index + "/" + this.format.name() + "/" + this.configFingerprint;
+    }
+
+}
@@ -0,0 +1,551 @@
+/* ========================================================================
+ * PlantUML : a free UML diagram generator
+ * ========================================================================
+ *
+ * Project Info:  https://plantuml.com
+ *
+ * This file is part of PlantUML.
+ *
+ * PlantUML is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PlantUML distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ */
+package jp.livlog.plantuml.servlet;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import jakarta.servlet.http.HttpServletResponse;
+import net.sourceforge.plantuml.BlockUml;
+import net.sourceforge.plantuml.ErrorUml;
+import net.sourceforge.plantuml.core.Diagram;
+import net.sourceforge.plantuml.error.PSystemError;
+
+/**
+ * Finished diagram response: the rendered bytes plus everything needed to reproduce the response headers
+ * without touching the diagram again.
+ */
+public final class RenderedDiagram {
+
+    /**
+     * Single syntax error reported by PlantUML.
+     */
+    public static final class DiagramError {
+
+        private final String message;
+
+        private final int    line;
+
+        DiagramError(final String msg, final int ln) {
+
+            this.message = msg;
+            this.line = ln;
+        }
+
+
+        public String getMessage() {
+
+            return this.message;
+        }
+
+
+        public int getLine() {
+
+            return this.line;
+        }
+    }
+
+    /**
+     * Rough per entry overhead used to weight cache entries.
+     */
+    private static final int          OVERHEAD = 256;
+
+    /**
+     * Http status code.
+     */
+    private final int                 status;
+
+    /**
+     * Error message for failed responses without body.
+     */
+    private final String              errorMessage;
+
+    /**
+     * Rendered diagram; `null` for failed responses and diagrams stored on disk.
+     */
+    private final byte[]              data;
+
+    /**
+     * File containing the rendered diagram; `null` if the diagram is kept in memory.
+     */
+    private final Path                file;
+
+    /**
+     * Position of the rendered diagram inside {@link #file}.
+     */
+    private final long                offset;
+
+    /**
+     * Length of the rendered diagram in bytes.
+     */
+    private final long                length;
+
+    /**
+     * Gzip compressed rendered diagram; `null` if there is no compressed variant or it is stored on disk.
+     */
+    private final byte[]              gzip;
+
+    /**
+     * Position of the compressed variant inside {@link #file}.
+     */
+    private final long                gzipOffset;
+
+    /**
+     * Length of the compressed variant in bytes; {@code 0} if there is no compressed variant.
+     */
+    private final long                gzipLength;
+
+    /**
+     * Is it allowed to add the cache headers to the response?
+     */
+    private final boolean             cacheable;
+
+    /**
+     * Diagram etag; `null` if the response does not describe a diagram block.
+     */
+    private final String              etag;
+
+    /**
+     * Diagram last modified timestamp.
+     */
+    private final long                lastModified;
+
+    /**
+     * Diagram description.
+     */
+    private final String              description;
+
+    /**
+     * Syntax errors of the diagram.
+     */
+    private final List <DiagramError> errors;
+
+    /**
+     * Image map of the diagram in HTML format; `null` if the diagram has no position information.
+     */
+    private final String              cmap;
+
+    private RenderedDiagram(
+            final int status,
+            final String errorMessage,
+            final byte[] data,
+            final Path file,
+            final long offset,
+            final long length,
+            final byte[] gzip,
+            final long gzipOffset,
+            final long gzipLength,
+            final boolean cacheable,
+            final String etag,
+            final long lastModified,
+            final String description,
+            final List <DiagramError> errors,
+            final String cmap) {
+
+        this.status = status;
+        this.errorMessage = errorMessage;
+        this.data = data;
+        this.file = file;
+        this.offset = offset;
+        this.length = length;
+        this.gzip = gzip;
+        this.gzipOffset = gzipOffset;
+        this.gzipLength = gzipLength;
+        this.cacheable = cacheable;
+        this.etag = etag;
+        this.lastModified = lastModified;
+        this.description = description;
+        this.errors = errors;
+        this.cmap = cmap;
+    }
+
+
+    /**
+     * Create a response of a rendered diagram block.
+     *
+     * @param block rendered diagram block
+     * @param data rendered bytes
+     * @param cacheable true if the cache headers are allowed
+     * @param cmap image map in HTML format; can be `null`
+     * @param gzip gzip compressed rendered bytes; `null` if there is no compressed variant
+     *
+     * @return rendered diagram
+     */
+    public static RenderedDiagram of(
+            final BlockUml block,
+            final byte[] data,
+            final boolean cacheable,
+            final String cmap,
+            final byte[] gzip) {
+
+        final var diagram = block.getDiagram();
+        final var errors = RenderedDiagram.getErrors(diagram);
+        return new RenderedDiagram(
+                diagram instanceof PSystemError ? HttpServletResponse.SC_BAD_REQUEST : HttpServletResponse.SC_OK,
+                null,
+                data,
+                null,
+                0,
+                data.length,
+                gzip,
+                0,
+                gzip == null ? 0 : gzip.length,
+                cacheable,
+                block.etag(),
+                block.lastModified(),
+                diagram.getDescription().getDescription(),
+                errors,
+                cmap);
+    }
+
+
+    /**
+     * Get the syntax errors of a diagram.
+     *
+     * @param diagram parsed diagram
+     *
+     * @return syntax errors; empty if the diagram has none
+     */
+    static List <DiagramError> getErrors(final Diagram diagram) {
+
+        final List <DiagramError> errors = new ArrayList <>();
+        if (diagram instanceof PSystemError) {
+            for (final ErrorUml err : ((PSystemError) diagram).getErrorsUml()) {
+                errors.add(new DiagramError(err.getError(), err.getLineLocation().getPosition()));
+            }
+        }
+        return Collections.unmodifiableList(errors);
+    }
+
+
+    /**
+     * Create a response which is not related to a single diagram block and therefore has no cache headers.
+     *
+     * @param data rendered bytes
+     *
+     * @return rendered diagram
+     */
+    public static RenderedDiagram of(final byte[] data) {
+
+        return new RenderedDiagram(
+                HttpServletResponse.SC_OK, null, data, null, 0, data.length, null, 0, 0, false, null, 0, null, Collections.emptyList(), null);
+    }
+
+
+    /**
+     * Create a failed response without body.
+     *
+     * @param status http error status code
+     * @param message error message; can be `null`
+     *
+     * @return failed response
+     */
+    public static RenderedDiagram failure(final int status, final String message) {
+
+        return new RenderedDiagram(
+                status, message, null, null, 0, 0, null, 0, 0, false, null, 0, null, Collections.emptyList(), null);
+    }
+
+
+    /**
+     * Create a response of a rendered diagram stored in a file.
+     * The file is only opened when the body is written, so responses which never write it, e.g. 304 responses,
+     * hold no file descriptor.
+     *
+     * @param status http status code
+     * @param cacheable true if the cache headers are allowed
+     * @param etag diagram etag
+     * @param lastModified diagram last modified timestamp
+     * @param description diagram description
+     * @param errors syntax errors of the diagram
+     * @param cmap image map in HTML format; can be `null`
+     * @param file file containing the rendered bytes
+     * @param offset position of the rendered bytes inside {@code file}
+     * @param length number of rendered bytes
+     * @param gzipOffset position of the gzip compressed rendered bytes inside {@code file}
+     * @param gzipLength number of gzip compressed rendered bytes; {@code 0} if there is no compressed variant
+     *
+     * @return rendered diagram
+     */
+    static RenderedDiagram stored(
+            final int status,
+            final boolean cacheable,
+            final String etag,
+            final long lastModified,
+            final String description,
+            final List <DiagramError> errors,
+            final String cmap,
+            final Path file,
+            final long offset,
+            final long length,
+            final long gzipOffset,
+            final long gzipLength) {
+
+        return new RenderedDiagram(
+                status,
+                null,
+                null,
+                file,
+                offset,
+                length,
+                null,
+                gzipOffset,
+                gzipLength,
+                cacheable,
+                etag,
+                lastModified,
+                description,
+                Collections.unmodifiableList(errors),
+                cmap);
+    }
+
+
+    /**
+     * Is this a failed response without body which should be send with {@code sendError}?
+     *
+     * @return true if failed; otherwise false
+     */
+    public boolean isFailure() {
+
+        return this.data == null && this.file == null;
+    }
+
+
+    /**
+     * Is this the error image of a diagram source with syntax errors?
+     *
+     * @return true if the diagram could not be parsed; otherwise false
+     */
+    public boolean isErrorDiagram() {
+
+        return !this.isFailure() && this.status == HttpServletResponse.SC_BAD_REQUEST;
+    }
+
+
+    /**
+     * Does this response describe a diagram block, i.e., are etag and the diagram headers available?
+     *
+     * @return true if block information are available; otherwise false
+     */
+    public boolean hasBlock() {
+
+        return this.etag != null;
+    }
+
+
+    /**
+     * Is there a gzip compressed variant of the rendered bytes?
+     *
+     * @return true if a compressed variant exists; otherwise false
+     */
+    public boolean hasGzip() {
+
+        return this.gzipLength > 0;
+    }
+
+
+    /**
+     * Write the rendered bytes.
+     * Diagrams stored on disk are transferred from the file channel without loading them into memory.
+     *
+     * @param out target stream
+     *
+     * @throws IOException if an input or output exception occurred
+     */
+    public void writeTo(final OutputStream out) throws IOException {
+
+        if (this.data != null) {
+            out.write(this.data);
+            return;
+        }
+        this.transfer(this.offset, this.length, out);
+    }
+
+
+    /**
+     * Write the gzip compressed variant of the rendered bytes.
+     *
+     * @param out target stream
+     *
+     * @throws IOException if an input or output exception occurred
+     */
+    public void writeGzipTo(final OutputStream out) throws IOException {
+
+        if (this.gzip != null) {
+            out.write(this.gzip);
+            return;
+        }
+        this.transfer(this.gzipOffset, this.gzipLength, out);
+    }
+
+
+    /**
+     * Transfer a range of the cache file without loading it into memory.
+     * The disk cache deletes evicted files only after a delay, so the file found at lookup is still there; once
+     * opened, a later deletion does not affect the transfer.
+     *
+     * @param start position of the first byte
+     * @param count number of bytes
+     * @param out target stream
+     *
+     * @throws IOException if an input or output exception occurred
+     */
+    private void transfer(final long start, final long count, final OutputStream out) throws IOException {
+
+        try (var channel = FileChannel.open(this.file, StandardOpenOption.READ)) {
+            final var end = start + count;
+            if (channel.size() < end) {
+                throw new IOException("Truncated cache file: " + this.file);
+            }
+            final var target = Channels.newChannel(out);
+            var position = start;
+            while (position < end) {
+                position += channel.transferTo(position, end - position, target);
+            }
+        }
+    }
+
+
+    /**
+     * Approximated memory footprint in bytes.
+     *
+     * @return weight of this response
+     */
+    public long weight() {
+
+        final var length = this.data == null ? 0 : this.data.length;
+        final var descLength = this.description == null ? 0 : this.description.length() * 2;
+        final var cmapLength = this.cmap == null ? 0 : this.cmap.length() * 2;
+        final var gzipLength = this.gzip == null ? 0 : this.gzip.length;
+        return RenderedDiagram.OVERHEAD + length + gzipLength + descLength + cmapLength + this.errors.size() * RenderedDiagram.OVERHEAD;
+    }
+
+
+    public int getStatus() {
+
+        return this.status;
+    }
+
+
+    public String getErrorMessage() {
+
+        return this.errorMessage;
+    }
+
+
+    /**
+     * Get the rendered bytes.
+     *
+     * @return rendered bytes; `null` for failed responses and diagrams stored on disk
+     */
+    public byte[] getData() {
+
+        return this.data;
+    }
+
+
+    public Path getFile() {
+
+        return this.file;
+    }
+
+
+    public long getOffset() {
+
+        return this.offset;
+    }
+
+
+    public long getLength() {
+
+        return this.length;
+    }
+
+
+    /**
+     * Get the gzip compressed rendered bytes.
+     *
+     * @return compressed bytes; `null` if there is no compressed variant or it is stored on disk
+     */
+    public byte[] getGzip() {
+
+        return this.gzip;
+    }
+
+
+    public long getGzipOffset() {
+
+        return this.gzipOffset;
+    }
+
+
+    public long getGzipLength() {
+
+        return this.gzipLength;
+    }
+
+
+    public boolean isCacheable() {
+
+        return this.cacheable;
+    }
+
+
+    public String getEtag() {
+
+        return this.etag;
+    }
+
+
+    public long getLastModified() {
+
+        return this.lastModified;
+    }
+
+
+    public String getDescription() {
+
+        return this.description;
+    }
+
+
+    public List <DiagramError> getErrors() {
+
+        return this.errors;
+    }
+
+
+    public String getCMap() {
+
+        return this.cmap;
+    }
+
+}
@@ -0,0 +1,56 @@
+/* ========================================================================
+ * PlantUML : a free UML diagram generator
+ * ========================================================================
+ *
+ * Project Info:  https://plantuml.com
+ *
+ * This file is part of PlantUML.
+ *
+ * PlantUML is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PlantUML distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ */
+package jp.livlog.plantuml.servlet;
+
+import java.io.IOException;
+
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import jp.livlog.plantuml.servlet.utility.HttpFetcher;
+import net.sourceforge.plantuml.json.JsonObject;
+
+/**
+ * Statistics servlet of the webapp.
+ * This servlet reports the counters of the render pipeline as JSON object.
+ */
+public class StatsServlet extends HttpServlet {
+
+    @Override
+    public void doGet(final HttpServletRequest request, final HttpServletResponse response) throws IOException, ServletException {
+
+        final var stats = new JsonObject();
+        stats.add("render", RenderCoordinator.getStatistics());
+        stats.add("sources", DiagramSourceStore.getStatistics());
+        stats.add("fetch", HttpFetcher.getStatistics());
+        stats.add("proxy", ProxySourceCache.getStatistics());
+        stats.add("config", ConfigSnapshot.getStatistics());
+
+        response.addHeader("Cache-Control", "no-cache");
+        response.setContentType("application/json;charset=UTF-8");
+        response.getWriter().write(stats.toString());
+    }
+
+}
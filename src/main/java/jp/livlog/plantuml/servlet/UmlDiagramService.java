@@ -24,6 +24,7 @@
 package jp.livlog.plantuml.servlet;
 
 import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
 
 import javax.imageio.IIOException;
 
@@ -47,6 +48,12 @@ public abstract class UmlDiagramService extends HttpServlet {
         final var encoded = UrlDataExtractor.getEncodedDiagram(url, "");
         final var idx = UrlDataExtractor.getIndex(url, 0);
 
+        // answer revalidations before decoding or parsing anything
+        final var dr = new DiagramResponse(response, this.getOutputFormat(), request);
+        if (this.sendNotModified(dr, encoded, idx)) {
+            return;
+        }
+
         // build the UML source from the compressed request parameter
         final String uml;
         try {
@@ -57,7 +64,7 @@ public abstract class UmlDiagramService extends HttpServlet {
             return;
         }
 
-        this.doDiagramResponse(request, response, uml, idx);
+        this.doDiagramResponse(request, dr, uml, idx);
     }
 
 
@@ -75,7 +82,31 @@ public abstract class UmlDiagramService extends HttpServlet {
             }
         }
 
-        this.doDiagramResponse(request, response, uml.toString(), idx);
+        final var dr = new DiagramResponse(response, this.getOutputFormat(), request);
+        if (this.sendNotModified(dr, uml.toString(), idx)) {
+            return;
+        }
+        this.doDiagramResponse(request, dr, uml.toString(), idx);
+    }
+
+
+    /**
+     * Answer the request with 304 Not Modified if the client's copy of the diagram is still valid.
+     *
+     * @param dr diagram response
+     * @param source encoded or textual UML diagram(s) source as sent by the client
+     * @param idx diagram index of {@code source}
+     *
+     * @return true if 304 Not Modified was sent; otherwise false
+     *
+     * @throws IOException if an input or output exception occurred
+     */
+    private boolean sendNotModified(final DiagramResponse dr, final String source, final int idx) throws IOException {
+
+        if (this.getOutputFormat() == FileFormat.BASE64) {
+            return false; // data URIs are sent without cache headers
+        }
+        return dr.sendNotModified(DiagramResponse.etag(source, idx, this.getOutputFormat().name()));
     }
 
 
@@ -83,7 +114,7 @@ public abstract class UmlDiagramService extends HttpServlet {
      * Send diagram response.
      *
      * @param request html request
-     * @param response html response
+     * @param dr diagram response
      * @param uml textual UML diagram(s) source
      * @param idx diagram index of {@code uml} to send
      *
@@ -91,12 +122,15 @@ public abstract class UmlDiagramService extends HttpServlet {
      */
     private void doDiagramResponse(
             final HttpServletRequest request,
-            final HttpServletResponse response,
+            final DiagramResponse dr,
             final String uml,
             final int idx) throws IOException {
 
         // generate the response
-        final var dr = new DiagramResponse(response, this.getOutputFormat(), request);
+        if (DiagramResponse.isAsync(request)) {
+            dr.sendDiagram(CompletableFuture.completedFuture(uml), idx, request.startAsync());
+            return;
+        }
         try {
             dr.sendDiagram(uml, idx);
         } catch (final IIOException e) {
@@ -0,0 +1,375 @@
+/* ========================================================================
+ * PlantUML : a free UML diagram generator
+ * ========================================================================
+ *
+ * Project Info:  https://plantuml.com
+ *
+ * This file is part of PlantUML.
+ *
+ * PlantUML is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PlantUML distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ */
+package jp.livlog.plantuml.servlet.utility;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fixed size worker pool with a bounded wait queue in front of it.
+ * Work is rejected with a {@link ServiceUnavailableException} if the queue is full or if the work
+ * waited longer than the maximum queue wait before a worker picked it up.
+ */
+public class BoundedExecutor {
+
+    /**
+     * Work waiting for or running on a worker.
+     *
+     * @param <V> result type
+     */
+    private final class Task <V> implements Runnable {
+
+        private static final int            QUEUED    = 0;
+
+        private static final int            RUNNING   = 1;
+
+        private static final int            DONE      = 2;
+
+        private static final int            ABANDONED = 3;
+
+        private final IOCallable <V>        work;
+
+        private final CompletableFuture <V> result    = new CompletableFuture <>();
+
+        /**
+         * Decides whether a worker starts the work or the work expires in the queue first and whether it
+         * finishes or exceeds its deadline first.
+         */
+        private final AtomicInteger         state     = new AtomicInteger(Task.QUEUED);
+
+        private final long                  enqueued  = System.nanoTime();
+
+        /**
+         * Maximum run time in milliseconds; if {@code 0} unlimited.
+         */
+        private final long                  deadline;
+
+        private volatile Thread             thread;
+
+        Task(final IOCallable <V> work, final long deadline) {
+
+            this.work = work;
+            this.deadline = deadline;
+        }
+
+
+        @Override
+        public void run() {
+
+            if (!this.state.compareAndSet(Task.QUEUED, Task.RUNNING)) {
+                return; // already expired
+            }
+            BoundedExecutor.this.recordWait(System.nanoTime() - this.enqueued);
+            BoundedExecutor.this.worker.set(Boolean.TRUE);
+            this.thread = Thread.currentThread();
+            ScheduledFuture <?> timeout = null;
+            if (this.deadline > 0) {
+                timeout = BoundedExecutor.TIMER.schedule(this::abandon, this.deadline, TimeUnit.MILLISECONDS);
+            }
+            V value = null;
+            Throwable failure = null;
+            try {
+                value = this.work.call();
+            } catch (final Throwable e) {
+                failure = e;
+            }
+            BoundedExecutor.this.worker.set(Boolean.FALSE);
+            if (timeout != null) {
+                timeout.cancel(false);
+            }
+            synchronized (this) {
+                if (!this.state.compareAndSet(Task.RUNNING, Task.DONE)) {
+                    // abandoned: do not leak the interrupt into the next work of this worker
+                    Thread.interrupted();
+                    return;
+                }
+            }
+            // dependent stages, e.g. response writes or further renders, run on this thread once the result is
+            // completed, so complete it only after the deadline is disarmed and the work is no longer running
+            if (failure == null) {
+                this.result.complete(value);
+            } else {
+                this.result.completeExceptionally(failure);
+            }
+        }
+
+
+        /**
+         * Expire the work if it is still waiting in the queue.
+         */
+        void expire() {
+
+            if (this.state.compareAndSet(Task.QUEUED, Task.DONE)) {
+                BoundedExecutor.this.pool.remove(this);
+                BoundedExecutor.this.expired.incrementAndGet();
+                this.result.completeExceptionally(new ServiceUnavailableException(
+                        "Server is too busy, render queue wait exceeded",
+                        BoundedExecutor.this.getRetryAfter()));
+            }
+        }
+
+
+        /**
+         * Abandon the work if it is still running after its deadline.
+         * The worker is interrupted, which stops blocking operations like waiting for external processes;
+         * work which does not react to the interrupt keeps its worker until it returns, but its result is
+         * discarded.
+         */
+        synchronized void abandon() {
+
+            if (this.state.compareAndSet(Task.RUNNING, Task.ABANDONED)) {
+                BoundedExecutor.this.abandoned.incrementAndGet();
+                this.result.completeExceptionally(new DeadlineExceededException(
+                        "Render deadline of " + this.deadline + " ms exceeded",
+                        BoundedExecutor.this.getRetryAfter()));
+                this.thread.interrupt();
+            }
+        }
+    }
+
+    /**
+     * Expires work which waits too long in the queue.
+     */
+    private static final ScheduledThreadPoolExecutor TIMER     = BoundedExecutor.createTimer();
+
+    /**
+     * Marks the worker threads while they run work, so that work submitted by the running work itself is run
+     * directly instead of queuing it behind itself. Cleared before the result is completed, so that work
+     * submitted by dependent stages of the result is queued and gets its own deadline.
+     */
+    private final ThreadLocal <Boolean>              worker    = ThreadLocal.withInitial(() -> Boolean.FALSE);
+
+    private final ThreadPoolExecutor                 pool;
+
+    /**
+     * Maximum time in milliseconds a work may wait in the queue.
+     */
+    private final long                               maxQueueWait;
+
+    private final AtomicLong                         accepted  = new AtomicLong();
+
+    private final AtomicLong                         rejected  = new AtomicLong();
+
+    private final AtomicLong                         expired   = new AtomicLong();
+
+    private final AtomicLong                         abandoned = new AtomicLong();
+
+    private final AtomicLong                         totalWait = new AtomicLong();
+
+    private final AtomicLong                         maxWait   = new AtomicLong();
+
+    /**
+     * Create new executor.
+     *
+     * @param name worker thread name prefix
+     * @param threads number of worker threads
+     * @param queueSize maximum number of waiting work items
+     * @param maxQueueWait maximum time in milliseconds a work may wait in the queue; if {@code 0} unlimited
+     */
+    public BoundedExecutor(final String name, final int threads, final int queueSize, final long maxQueueWait) {
+
+        final var counter = new AtomicInteger();
+        this.pool = new ThreadPoolExecutor(
+                threads,
+                threads,
+                0L,
+                TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue <>(Math.max(1, queueSize)),
+                runnable -> {
+                    final var thread = new Thread(runnable, name + "-" + counter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        this.maxQueueWait = maxQueueWait;
+    }
+
+
+    /**
+     * Submit work to a worker thread.
+     * Work submitted by running work itself is executed directly to avoid waiting for its own pool.
+     *
+     * @param <V> result type
+     * @param work work to execute
+     *
+     * @return work result; fails with {@link ServiceUnavailableException} if the work was rejected
+     */
+    public <V> CompletableFuture <V> submit(final IOCallable <V> work) {
+
+        return this.submit(work, 0);
+    }
+
+
+    /**
+     * Submit work to a worker thread and abandon it if it runs longer than its deadline.
+     * Work submitted by running work itself is executed directly, bounded by the deadline of the outer work;
+     * work submitted by stages depending on a completed result is queued like any other work.
+     *
+     * @param <V> result type
+     * @param work work to execute
+     * @param deadline maximum run time in milliseconds, not counting the queue wait; if {@code 0} unlimited
+     *
+     * @return work result; fails with {@link ServiceUnavailableException} if the work was rejected or with
+     *         {@link DeadlineExceededException} if it was abandoned
+     */
+    public <V> CompletableFuture <V> submit(final IOCallable <V> work, final long deadline) {
+
+        if (this.worker.get()) {
+            try {
+                return CompletableFuture.completedFuture(work.call());
+            } catch (IOException | RuntimeException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        }
+        final var task = new Task <>(work, deadline);
+        try {
+            this.pool.execute(task);
+        } catch (final RejectedExecutionException e) {
+            this.rejected.incrementAndGet();
+            return CompletableFuture.failedFuture(
+                    new ServiceUnavailableException("Server is too busy, render queue is full", this.getRetryAfter()));
+        }
+        this.accepted.incrementAndGet();
+        if (this.maxQueueWait > 0) {
+            final var timeout = BoundedExecutor.TIMER.schedule(task::expire, this.maxQueueWait, TimeUnit.MILLISECONDS);
+            task.result.whenComplete((result, failure) -> timeout.cancel(false));
+        }
+        return task.result;
+    }
+
+
+    /**
+     * Create the timer thread expiring waiting work.
+     *
+     * @return timer
+     */
+    private static ScheduledThreadPoolExecutor createTimer() {
+
+        final var timer = new ScheduledThreadPoolExecutor(1, runnable -> {
+            final var thread = new Thread(runnable, "plantuml-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.setRemoveOnCancelPolicy(true);
+        return timer;
+    }
+
+
+    /**
+     * Execute work on a worker thread and wait for its result.
+     *
+     * @param <V> result type
+     * @param work work to execute
+     *
+     * @return work result
+     *
+     * @throws IOException if the work failed with an input or output exception
+     * @throws ServiceUnavailableException if the work was rejected
+     */
+    public <V> V execute(final IOCallable <V> work) throws IOException {
+
+        return Futures.await(this.submit(work));
+    }
+
+
+    private void recordWait(final long nanos) {
+
+        final var millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+        this.totalWait.addAndGet(millis);
+        this.maxWait.accumulateAndGet(millis, Math::max);
+    }
+
+
+    /**
+     * Get suggested delay in seconds before a rejected client should retry.
+     *
+     * @return retry delay in seconds
+     */
+    private long getRetryAfter() {
+
+        return Math.max(1, TimeUnit.MILLISECONDS.toSeconds(this.maxQueueWait));
+    }
+
+
+    public int getThreads() {
+
+        return this.pool.getMaximumPoolSize();
+    }
+
+
+    public int getActive() {
+
+        return this.pool.getActiveCount();
+    }
+
+
+    public int getQueueDepth() {
+
+        return this.pool.getQueue().size();
+    }
+
+
+    public long getAccepted() {
+
+        return this.accepted.get();
+    }
+
+
+    public long getRejected() {
+
+        return this.rejected.get();
+    }
+
+
+    public long getExpired() {
+
+        return this.expired.get();
+    }
+
+
+    public long getAbandoned() {
+
+        return this.abandoned.get();
+    }
+
+
+    public long getTotalWait() {
+
+        return this.totalWait.get();
+    }
+
+
+    public long getMaxWait() {
+
+        return this.maxWait.get();
+    }
+
+}
@@ -32,9 +32,12 @@ import java.util.Properties;
 public final class Configuration {
 
     /**
-     * Singleton configuration instance.
+     * Holder of the singleton configuration instance, created thread-safe on first use by the class loader.
      */
-    private static Configuration instance;
+    private static final class Holder {
+
+        private static final Configuration INSTANCE = new Configuration();
+    }
 
     /**
      * Configuration properties.
@@ -73,10 +76,7 @@ public final class Configuration {
      */
     public static Properties get() {
 
-        if (Configuration.instance == null) {
-            Configuration.instance = new Configuration();
-        }
-        return Configuration.instance.config;
+        return Holder.INSTANCE.config;
     }
 
 
@@ -95,4 +95,40 @@ public final class Configuration {
         return Configuration.get().getProperty(key).startsWith("on");
     }
 
+
+    /**
+     * Get a numeric value from an environment variable.
+     *
+     * @param name environment variable name
+     * @param fallback fallback value if the variable is not set or not a number
+     *
+     * @return the environment variable value; otherwise {@code fallback}
+     */
+    public static long getEnv(final String name, final long fallback) {
+
+        final var value = System.getenv(name);
+        if (value == null || !value.matches("^\\d+$")) {
+            return fallback;
+        }
+        return Long.parseLong(value);
+    }
+
+
+    /**
+     * Get a boolean value from an environment variable.
+     *
+     * @param name environment variable name
+     * @param fallback fallback value if the variable is not set
+     *
+     * @return true if the value is "on" or "true"; otherwise false
+     */
+    public static boolean getEnv(final String name, final boolean fallback) {
+
+        final var value = System.getenv(name);
+        if (value == null) {
+            return fallback;
+        }
+        return value.startsWith("on") || "true".equalsIgnoreCase(value);
+    }
+
 }
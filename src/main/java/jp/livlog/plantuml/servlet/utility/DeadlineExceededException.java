@@ -0,0 +1,44 @@
+/* ========================================================================
+ * PlantUML : a free UML diagram generator
+ * ========================================================================
+ *
+ * Project Info:  https://plantuml.com
+ *
+ * This file is part of PlantUML.
+ *
+ * PlantUML is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PlantUML distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ */
+package jp.livlog.plantuml.servlet.utility;
+
+/**
+ * Signals that a work did not finish within its deadline and was abandoned.
+ */
+public class DeadlineExceededException extends ServiceUnavailableException {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Create new exception.
+     *
+     * @param message error message
+     * @param retryAfter suggested delay in seconds before the client retries the request
+     */
+    public DeadlineExceededException(final String message, final long retryAfter) {
+
+        super(message, retryAfter);
+    }
+
+}
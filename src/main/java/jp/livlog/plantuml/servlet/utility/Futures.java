@@ -0,0 +1,100 @@
+/* ========================================================================
+ * PlantUML : a free UML diagram generator
+ * ========================================================================
+ *
+ * Project Info:  https://plantuml.com
+ *
+ * This file is part of PlantUML.
+ *
+ * PlantUML is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PlantUML distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ */
+package jp.livlog.plantuml.servlet.utility;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Utility class to wait for {@link CompletableFuture} results with plain {@link IOException} semantics.
+ */
+public abstract class Futures {
+
+    /**
+     * Wait for a result and rethrow its failure as thrown by the work itself.
+     *
+     * @param <V> result type
+     * @param future result to wait for
+     *
+     * @return result
+     *
+     * @throws IOException if the work failed with an input or output exception or the wait was interrupted
+     */
+    public static <V> V await(final CompletableFuture <V> future) throws IOException {
+
+        try {
+            return future.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a result");
+        } catch (final ExecutionException e) {
+            throw Futures.rethrow(e.getCause());
+        }
+    }
+
+
+    /**
+     * Unwrap a failure of a {@link CompletableFuture} to the exception thrown by the work itself.
+     *
+     * @param failure failure, possibly wrapped into a {@link CompletionException}
+     *
+     * @return unwrapped failure
+     */
+    public static Throwable unwrap(final Throwable failure) {
+
+        if ((failure instanceof CompletionException || failure instanceof ExecutionException) && failure.getCause() != null) {
+            return Futures.unwrap(failure.getCause());
+        }
+        return failure;
+    }
+
+
+    /**
+     * Rethrow a failure as unchecked exception, error or {@link IOException}.
+     *
+     * @param failure failure of a work
+     *
+     * @return never returns, declared to allow {@code throw Futures.rethrow(e)}
+     *
+     * @throws IOException if the failure is an {@link IOException} or a checked exception
+     */
+    public static IOException rethrow(final Throwable failure) throws IOException {
+
+        final var cause = Futures.unwrap(failure);
+        if (cause instanceof IOException) {
+            throw (IOException) cause;
+        }
+        if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        }
+        if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        throw new IOException(cause);
+    }
+
+}
@@ -0,0 +1,163 @@
+/* ========================================================================
+ * PlantUML : a free UML diagram generator
+ * ========================================================================
+ *
+ * Project Info:  https://plantuml.com
+ *
+ * This file is part of PlantUML.
+ *
+ * PlantUML is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PlantUML distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ */
+package jp.livlog.plantuml.servlet.utility;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.GZIPOutputStream;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import net.sourceforge.plantuml.FileFormat;
+
+/**
+ * Utility class to precompute gzip compressed variants of responses and to serve them to clients
+ * accepting them, so the same bytes are never compressed twice.
+ */
+public abstract class Gzip {
+
+    /**
+     * Minimum response size in bytes worth compressing, set by PLANTUML_GZIP_THRESHOLD
+     * (1 KiB by default; 0 disables compression).
+     */
+    private static final long THRESHOLD = Configuration.getEnv("PLANTUML_GZIP_THRESHOLD", 1024);
+
+    /**
+     * Suffix of the entity tag of a compressed variant; a strong entity tag must differ between the content
+     * codings of the same response.
+     */
+    public static final String ETAG_SUFFIX = "-gz";
+
+    /**
+     * Are responses in this format text based and therefore worth compressing?
+     *
+     * @param fmt file format
+     *
+     * @return true if compressible; otherwise false
+     */
+    public static boolean isCompressible(final FileFormat fmt) {
+
+        switch (fmt) {
+            case SVG:
+            case UTXT:
+            case ATXT:
+            case EPS:
+            case EPS_TEXT:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+
+    /**
+     * Compress response bytes.
+     *
+     * @param data uncompressed bytes
+     *
+     * @return compressed bytes; `null` if {@code data} is below the threshold or does not get smaller
+     */
+    public static byte[] compress(final byte[] data) {
+
+        if (Gzip.THRESHOLD <= 0 || data.length < Gzip.THRESHOLD) {
+            return null;
+        }
+        final var out = new ByteArrayOutputStream(data.length / 4);
+        try (var gzip = new GZIPOutputStream(out)) {
+            gzip.write(data);
+        } catch (final IOException e) {
+            // in memory streams never fail
+            throw new IllegalStateException(e);
+        }
+        if (out.size() >= data.length) {
+            return null;
+        }
+        return out.toByteArray();
+    }
+
+
+    /**
+     * Does the client accept gzip compressed responses?
+     *
+     * @param request http request
+     *
+     * @return true if the Accept-Encoding header contains gzip without {@code q=0}; otherwise false
+     */
+    public static boolean isAccepted(final HttpServletRequest request) {
+
+        final var acceptEncoding = request.getHeader("Accept-Encoding");
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (final String coding : acceptEncoding.split(",")) {
+            final var parts = coding.trim().split(";");
+            if ("gzip".equalsIgnoreCase(parts[0].trim()) || "x-gzip".equalsIgnoreCase(parts[0].trim())) {
+                return parts.length < 2 || !parts[1].trim().matches("^q=0(\\.0*)?$");
+            }
+        }
+        return false;
+    }
+
+
+    /**
+     * Add the headers of a response which has a gzip compressed variant.
+     *
+     * @param request http request
+     * @param response http response
+     *
+     * @return true if the compressed variant must be sent; otherwise false
+     */
+    public static boolean addHeaders(final HttpServletRequest request, final HttpServletResponse response) {
+
+        response.addHeader("Vary", "Accept-Encoding");
+        if (!Gzip.isAccepted(request)) {
+            return false;
+        }
+        response.setHeader("Content-Encoding", "gzip");
+        return true;
+    }
+
+
+    /**
+     * Send a precomputed response and its compressed variant.
+     *
+     * @param request http request
+     * @param response http response
+     * @param data uncompressed bytes
+     * @param gzip compressed bytes; if `null` {@code data} is sent
+     *
+     * @throws IOException if an input or output exception occurred
+     */
+    public static void write(
+            final HttpServletRequest request,
+            final HttpServletResponse response,
+            final byte[] data,
+            final byte[] gzip) throws IOException {
+
+        final var body = gzip != null && Gzip.addHeaders(request, response) ? gzip : data;
+        response.setContentLength(body.length);
+        response.getOutputStream().write(body);
+    }
+
+}
@@ -0,0 +1,447 @@
+/* ========================================================================
+ * PlantUML : a free UML diagram generator
+ * ========================================================================
+ *
+ * Project Info:  https://plantuml.com
+ *
+ * This file is part of PlantUML.
+ *
+ * PlantUML is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PlantUML distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ */
+package jp.livlog.plantuml.servlet.utility;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse.BodySubscriber;
+import java.net.http.HttpResponse.ResponseInfo;
+import java.net.http.HttpTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.sourceforge.plantuml.json.JsonObject;
+
+/**
+ * Shared HTTP client loading diagram sources and images from external URLs.
+ * All fetches use one pooled {@link HttpClient}, so connections (and TLS sessions) to the same host
+ * are reused and HTTP/2 is negotiated where the server supports it.
+ * Every fetch is bounded by a connect timeout, a total timeout, a maximum response size and a
+ * maximum number of concurrent fetches per host.
+ */
+public final class HttpFetcher {
+
+    /**
+     * Maximum time in milliseconds to establish a connection.
+     */
+    private static final long                          CONNECT_TIMEOUT = Configuration.getEnv("PLANTUML_FETCH_CONNECT_TIMEOUT", 5000);
+
+    /**
+     * Maximum time in milliseconds to load a response.
+     */
+    private static final long                          READ_TIMEOUT    = Configuration.getEnv("HTTP_PROXY_READ_TIMEOUT", 10000);
+
+    /**
+     * Maximum response size in bytes.
+     */
+    private static final long                          MAX_SIZE        = Configuration.getEnv("PLANTUML_FETCH_MAX_SIZE", 16L * 1024 * 1024);
+
+    /**
+     * Maximum number of concurrent fetches per host; if {@code 0} unlimited.
+     */
+    private static final int                           MAX_PER_HOST    = (int) Configuration.getEnv("PLANTUML_FETCH_MAX_PER_HOST", 8);
+
+    private static final HttpClient                    CLIENT          = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_2)
+            .followRedirects(HttpClient.Redirect.NORMAL)
+            .connectTimeout(Duration.ofMillis(HttpFetcher.CONNECT_TIMEOUT))
+            .build();
+
+    /**
+     * Fetch slots of the hosts with fetches in flight or waiting; hosts are removed as soon as their last fetch
+     * is done, so the map never grows beyond the number of concurrent fetches.
+     */
+    private static final Map <String, Host>            HOSTS           = new ConcurrentHashMap <>();
+
+    private static final AtomicLong                    requests        = new AtomicLong();
+
+    private static final AtomicLong                    failures        = new AtomicLong();
+
+    private static final AtomicLong                    throttled       = new AtomicLong();
+
+    private static final AtomicLong                    bytes           = new AtomicLong();
+
+    /**
+     * Fetch slots of a host.
+     */
+    private static final class Host {
+
+        private final Semaphore slots = new Semaphore(HttpFetcher.MAX_PER_HOST);
+
+        /**
+         * Number of fetches holding or waiting for a slot; only changed while the host is locked in {@link #HOSTS}.
+         */
+        private int             users;
+    }
+
+    /**
+     * Response of a successful fetch.
+     */
+    public static final class Response {
+
+        private final int                         status;
+
+        private final String                      contentType;
+
+        private final byte[]                      body;
+
+        private final Map <String, List <String>> headers;
+
+        Response(final int status, final String contentType, final byte[] body, final Map <String, List <String>> headers) {
+
+            this.status = status;
+            this.contentType = contentType;
+            this.body = body;
+            this.headers = headers;
+        }
+
+
+        /**
+         * Get the first value of a response header.
+         *
+         * @param name header name (case insensitive)
+         *
+         * @return header value; otherwise `null`
+         */
+        public String getHeader(final String name) {
+
+            for (final var entry : this.headers.entrySet()) {
+                if (entry.getKey().equalsIgnoreCase(name) && !entry.getValue().isEmpty()) {
+                    return entry.getValue().get(0);
+                }
+            }
+            return null;
+        }
+
+
+        /**
+         * Get the response body as text with normalized line endings.
+         *
+         * @return response body lines joined by "\n"
+         */
+        public String getText() {
+
+            return String.join("\n", new String(this.body, StandardCharsets.UTF_8).lines().toList());
+        }
+
+
+        public int getStatus() {
+
+            return this.status;
+        }
+
+
+        public String getContentType() {
+
+            return this.contentType;
+        }
+
+
+        public byte[] getBody() {
+
+            return this.body;
+        }
+
+    }
+
+    /**
+     * Collects the response body and cancels the exchange as soon as it exceeds {@link #MAX_SIZE}.
+     */
+    private static final class LimitedBodySubscriber implements BodySubscriber <byte[]> {
+
+        /**
+         * Content length announced by the server; if {@code -1} unknown.
+         */
+        private final long                       announced;
+
+        private final CompletableFuture <byte[]> result  = new CompletableFuture <>();
+
+        private final List <ByteBuffer>          buffers = new ArrayList <>();
+
+        private Flow.Subscription                subscription;
+
+        private long                             size;
+
+        LimitedBodySubscriber(final long announced) {
+
+            this.announced = announced;
+        }
+
+
+        @Override
+        public CompletionStage <byte[]> getBody() {
+
+            return this.result;
+        }
+
+
+        @Override
+        public void onSubscribe(final Flow.Subscription subscription) {
+
+            this.subscription = subscription;
+            if (this.announced > HttpFetcher.MAX_SIZE) {
+                subscription.cancel();
+                this.result.completeExceptionally(new IOException("Response exceeds " + HttpFetcher.MAX_SIZE + " bytes."));
+                return;
+            }
+            subscription.request(Long.MAX_VALUE);
+        }
+
+
+        @Override
+        public void onNext(final List <ByteBuffer> items) {
+
+            if (this.result.isDone()) {
+                return;
+            }
+            for (final var item : items) {
+                this.size += item.remaining();
+                this.buffers.add(item);
+            }
+            if (this.size > HttpFetcher.MAX_SIZE) {
+                this.subscription.cancel();
+                this.buffers.clear();
+                this.result.completeExceptionally(new IOException("Response exceeds " + HttpFetcher.MAX_SIZE + " bytes."));
+            }
+        }
+
+
+        @Override
+        public void onError(final Throwable throwable) {
+
+            this.buffers.clear();
+            this.result.completeExceptionally(throwable);
+        }
+
+
+        @Override
+        public void onComplete() {
+
+            final var data = new byte[(int) this.size];
+            var offset = 0;
+            for (final var buffer : this.buffers) {
+                final var length = buffer.remaining();
+                buffer.get(data, offset, length);
+                offset += length;
+            }
+            this.buffers.clear();
+            this.result.complete(data);
+        }
+
+    }
+
+    private HttpFetcher() {
+
+    }
+
+
+    /**
+     * Fetch an URL with a GET request.
+     *
+     * @param url URL to fetch
+     *
+     * @return successful response
+     *
+     * @throws IOException if the fetch failed, timed out, exceeded the maximum size or the server did
+     *         not respond with a 2xx status
+     */
+    public static Response get(final URL url) throws IOException {
+
+        return HttpFetcher.get(url, Map.of());
+    }
+
+
+    /**
+     * Get the Authorization header set by HTTP_AUTHORIZATION.
+     * Only the loads of /proxy sources and /metadata images send it; never pass it with other user supplied
+     * URLs.
+     *
+     * @return request headers; empty if HTTP_AUTHORIZATION is not set
+     */
+    public static Map <String, String> getAuthorization() {
+
+        final var token = System.getenv("HTTP_AUTHORIZATION");
+        return token == null ? Map.of() : Map.of("Authorization", token);
+    }
+
+
+    /**
+     * Fetch an URL with a GET request.
+     *
+     * @param url URL to fetch
+     * @param headers additional request headers, e.g. {@link #getAuthorization()}
+     *
+     * @return successful response
+     *
+     * @throws IOException if the fetch failed, timed out, exceeded the maximum size or the server did
+     *         not respond with a 2xx status
+     */
+    public static Response get(final URL url, final Map <String, String> headers) throws IOException {
+
+        final URI uri;
+        try {
+            uri = url.toURI();
+        } catch (final URISyntaxException e) {
+            throw new IOException("Invalid URL: " + url, e);
+        }
+        final var builder = HttpRequest.newBuilder(uri)
+                .GET()
+                .timeout(Duration.ofMillis(HttpFetcher.READ_TIMEOUT));
+        headers.forEach(builder::header);
+
+        final var name = uri.getHost() == null ? null : uri.getHost().toLowerCase();
+        final var host = HttpFetcher.acquire(name);
+        HttpFetcher.requests.incrementAndGet();
+        final var future = HttpFetcher.CLIENT.sendAsync(builder.build(), HttpFetcher::subscribe);
+        try {
+            final var response = future.get(HttpFetcher.READ_TIMEOUT, TimeUnit.MILLISECONDS);
+            HttpFetcher.bytes.addAndGet(response.body().length);
+            if (response.statusCode() / 100 != 2 && response.statusCode() != 304) {
+                throw new IOException("Server returned HTTP response code: " + response.statusCode() + " for URL: " + url);
+            }
+            return new Response(
+                    response.statusCode(),
+                    response.headers().firstValue("Content-Type").orElse(null),
+                    response.body(),
+                    response.headers().map());
+        } catch (final InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Fetch of " + url + " interrupted.");
+        } catch (final TimeoutException e) {
+            future.cancel(true);
+            HttpFetcher.failures.incrementAndGet();
+            throw new HttpTimeoutException("Fetch of " + url + " timed out.");
+        } catch (final ExecutionException e) {
+            HttpFetcher.failures.incrementAndGet();
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } catch (final IOException e) {
+            HttpFetcher.failures.incrementAndGet();
+            throw e;
+        } finally {
+            if (host != null) {
+                host.slots.release();
+                HttpFetcher.leave(name);
+            }
+        }
+    }
+
+
+    /**
+     * Get the fetcher counters.
+     *
+     * @return fetcher statistics
+     */
+    public static JsonObject getStatistics() {
+
+        final var stats = new JsonObject();
+        stats.add("requests", HttpFetcher.requests.get());
+        stats.add("failures", HttpFetcher.failures.get());
+        stats.add("throttled", HttpFetcher.throttled.get());
+        stats.add("bytes", HttpFetcher.bytes.get());
+        stats.add("hosts", HttpFetcher.HOSTS.size());
+        return stats;
+    }
+
+
+    /**
+     * Wait for a free fetch slot of a host.
+     *
+     * @param name lower case host name
+     *
+     * @return host whose slot was acquired and has to be released, followed by {@link #leave}, after the fetch;
+     *         `null` if unlimited
+     *
+     * @throws IOException if no slot became free within the read timeout
+     */
+    private static Host acquire(final String name) throws IOException {
+
+        if (HttpFetcher.MAX_PER_HOST <= 0 || name == null) {
+            return null;
+        }
+        final var host = HttpFetcher.HOSTS.compute(name, (key, current) -> {
+            final var joined = current == null ? new Host() : current;
+            joined.users++;
+            return joined;
+        });
+        try {
+            if (host.slots.tryAcquire(HttpFetcher.READ_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                return host;
+            }
+        } catch (final InterruptedException e) {
+            HttpFetcher.leave(name);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Fetch from " + name + " interrupted.");
+        }
+        HttpFetcher.leave(name);
+        HttpFetcher.throttled.incrementAndGet();
+        throw new ServiceUnavailableException("Too many concurrent fetches from " + name + ".", 1);
+    }
+
+
+    /**
+     * Stop using the fetch slots of a host and forget the host if no other fetch uses them.
+     *
+     * @param name lower case host name
+     */
+    private static void leave(final String name) {
+
+        HttpFetcher.HOSTS.computeIfPresent(name, (key, host) -> --host.users == 0 ? null : host);
+    }
+
+
+    /**
+     * Create the body subscriber of a response.
+     *
+     * @param info response status and headers
+     *
+     * @return body subscriber
+     */
+    private static BodySubscriber <byte[]> subscribe(final ResponseInfo info) {
+
+        return new LimitedBodySubscriber(info.headers().firstValueAsLong("Content-Length").orElse(-1));
+    }
+
+}
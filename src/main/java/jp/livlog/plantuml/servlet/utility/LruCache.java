@@ -0,0 +1,330 @@
+/* ========================================================================
+ * PlantUML : a free UML diagram generator
+ * ========================================================================
+ *
+ * Project Info:  https://plantuml.com
+ *
+ * This file is part of PlantUML.
+ *
+ * PlantUML is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PlantUML distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ */
+package jp.livlog.plantuml.servlet.utility;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
+
+/**
+ * Bounded, thread-safe, least-recently-used cache.
+ * The capacity is expressed as a total weight (e.g. a number of bytes) computed by a weigher for every entry.
+ * Optionally entries expire a fixed time after they were stored.
+ *
+ * @param <K> key type
+ * @param <V> value type
+ */
+public class LruCache <K, V> {
+
+    /**
+     * Cached value and its expiry time.
+     *
+     * @param <V> value type
+     */
+    private static final class Entry <V> {
+
+        private final V    value;
+
+        private final long weight;
+
+        /**
+         * Expiry time in milliseconds since epoch; {@link Long#MAX_VALUE} if the entry never expires.
+         */
+        private final long expires;
+
+        Entry(final V value, final long weight, final long expires) {
+
+            this.value = value;
+            this.weight = weight;
+            this.expires = expires;
+        }
+    }
+
+    /**
+     * Cache entries in access order; the eldest entry is the least recently used one.
+     */
+    private final LinkedHashMap <K, Entry <V>> entries   = new LinkedHashMap <>(16, 0.75f, true);
+
+    /**
+     * Maximum total weight of all entries.
+     */
+    private final long                         maxWeight;
+
+    /**
+     * Computes the weight of a single value.
+     */
+    private final ToLongFunction <V>           weigher;
+
+    /**
+     * Time in milliseconds an entry stays valid; if {@code 0} entries never expire.
+     */
+    private final long                         ttl;
+
+    /**
+     * Notified about entries evicted to make room for new ones.
+     */
+    private final BiConsumer <K, V>            evictionListener;
+
+    /**
+     * Current total weight of all entries.
+     */
+    private long                               weight    = 0;
+
+    private final AtomicLong                   hits      = new AtomicLong();
+
+    private final AtomicLong                   misses    = new AtomicLong();
+
+    private final AtomicLong                   evictions = new AtomicLong();
+
+    private final AtomicLong                   expired   = new AtomicLong();
+
+    /**
+     * Create new cache.
+     *
+     * @param maxWeight maximum total weight; if {@code 0} or less the cache is disabled
+     * @param weigher computes the weight of a value
+     */
+    public LruCache(final long maxWeight, final ToLongFunction <V> weigher) {
+
+        this(maxWeight, weigher, 0);
+    }
+
+
+    /**
+     * Create new cache whose entries expire.
+     *
+     * @param maxWeight maximum total weight; if {@code 0} or less the cache is disabled
+     * @param weigher computes the weight of a value
+     * @param ttl time in milliseconds an entry stays valid after it was stored; if {@code 0} entries never expire
+     */
+    public LruCache(final long maxWeight, final ToLongFunction <V> weigher, final long ttl) {
+
+        this(maxWeight, weigher, ttl, (key, value) -> {
+        });
+    }
+
+
+    /**
+     * Create new cache whose entries expire and which reports evicted entries, e.g., to release
+     * resources held by them.
+     *
+     * @param maxWeight maximum total weight; if {@code 0} or less the cache is disabled
+     * @param weigher computes the weight of a value
+     * @param ttl time in milliseconds an entry stays valid after it was stored; if {@code 0} entries never expire
+     * @param evictionListener notified about evicted entries while the cache is locked
+     */
+    public LruCache(final long maxWeight, final ToLongFunction <V> weigher, final long ttl, final BiConsumer <K, V> evictionListener) {
+
+        this.maxWeight = maxWeight;
+        this.weigher = weigher;
+        this.ttl = ttl;
+        this.evictionListener = evictionListener;
+    }
+
+
+    /**
+     * Is this cache enabled at all?
+     *
+     * @return true if entries can be stored; otherwise false
+     */
+    public boolean isEnabled() {
+
+        return this.maxWeight > 0;
+    }
+
+
+    /**
+     * Get cached value and mark it as recently used.
+     *
+     * @param key cache key
+     *
+     * @return cached value; otherwise `null`
+     */
+    public V get(final K key) {
+
+        Entry <V> entry;
+        synchronized (this) {
+            entry = this.entries.get(key);
+            if (entry != null && entry.expires <= System.currentTimeMillis()) {
+                this.entries.remove(key);
+                this.weight -= entry.weight;
+                this.expired.incrementAndGet();
+                entry = null;
+            }
+        }
+        if (entry == null) {
+            this.misses.incrementAndGet();
+            return null;
+        }
+        this.hits.incrementAndGet();
+        return entry.value;
+    }
+
+
+    /**
+     * Is a value cached, without marking it as recently used or counting a hit or miss?
+     *
+     * @param key cache key
+     *
+     * @return true if a value is cached and not expired; otherwise false
+     */
+    public synchronized boolean containsKey(final K key) {
+
+        final var entry = this.entries.get(key);
+        return entry != null && entry.expires > System.currentTimeMillis();
+    }
+
+
+    /**
+     * Store value and evict least recently used entries until the cache fits its maximum weight again.
+     * Values heavier than the whole cache are not stored at all.
+     *
+     * @param key cache key
+     * @param value value to cache
+     */
+    public void put(final K key, final V value) {
+
+        if (!this.isEnabled()) {
+            return;
+        }
+        final var valueWeight = this.weigher.applyAsLong(value);
+        if (valueWeight > this.maxWeight) {
+            return;
+        }
+        final var expires = this.ttl > 0 ? System.currentTimeMillis() + this.ttl : Long.MAX_VALUE;
+        synchronized (this) {
+            final var previous = this.entries.put(key, new Entry <>(value, valueWeight, expires));
+            if (previous != null) {
+                this.weight -= previous.weight;
+            }
+            this.weight += valueWeight;
+            final Iterator <Map.Entry <K, Entry <V>>> it = this.entries.entrySet().iterator();
+            while (this.weight > this.maxWeight && it.hasNext()) {
+                final var eldest = it.next();
+                this.weight -= eldest.getValue().weight;
+                it.remove();
+                this.evictions.incrementAndGet();
+                this.evictionListener.accept(eldest.getKey(), eldest.getValue().value);
+            }
+        }
+    }
+
+
+    /**
+     * Remove an entry.
+     *
+     * @param key cache key
+     */
+    public synchronized void remove(final K key) {
+
+        final var entry = this.entries.remove(key);
+        if (entry != null) {
+            this.weight -= entry.weight;
+        }
+    }
+
+
+    /**
+     * Remove all entries whose key matches a condition.
+     *
+     * @param filter condition of the keys to remove
+     *
+     * @return number of removed entries
+     */
+    public synchronized int removeIf(final Predicate <K> filter) {
+
+        var removed = 0;
+        final var it = this.entries.entrySet().iterator();
+        while (it.hasNext()) {
+            final var entry = it.next();
+            if (filter.test(entry.getKey())) {
+                this.weight -= entry.getValue().weight;
+                it.remove();
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+
+    /**
+     * Remove all entries.
+     */
+    public synchronized void clear() {
+
+        this.entries.clear();
+        this.weight = 0;
+    }
+
+
+    /**
+     * Get number of cached entries.
+     *
+     * @return number of entries
+     */
+    public synchronized int size() {
+
+        return this.entries.size();
+    }
+
+
+    /**
+     * Get current total weight of all entries.
+     *
+     * @return total weight
+     */
+    public synchronized long weight() {
+
+        return this.weight;
+    }
+
+
+    public long getHits() {
+
+        return this.hits.get();
+    }
+
+
+    public long getMisses() {
+
+        return this.misses.get();
+    }
+
+
+    public long getEvictions() {
+
+        return this.evictions.get();
+    }
+
+
+    public long getExpired() {
+
+        return this.expired.get();
+    }
+
+}
@@ -0,0 +1,117 @@
+/* ========================================================================
+ * PlantUML : a free UML diagram generator
+ * ========================================================================
+ *
+ * Project Info:  https://plantuml.com
+ *
+ * This file is part of PlantUML.
+ *
+ * PlantUML is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PlantUML distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ */
+package jp.livlog.plantuml.servlet.utility;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces concurrent executions of the same work.
+ * The first caller of a key (the leader) starts the work; every caller arriving while the work is
+ * still in flight (a follower) gets the leader's result or failure instead of starting the work again.
+ *
+ * @param <K> key type
+ * @param <V> result type
+ */
+public class SingleFlight <K, V> {
+
+    /**
+     * Results of the work currently in flight.
+     */
+    private final ConcurrentHashMap <K, CompletableFuture <V>> inFlight  = new ConcurrentHashMap <>();
+
+    private final AtomicLong                                   leaders   = new AtomicLong();
+
+    private final AtomicLong                                   coalesced = new AtomicLong();
+
+    /**
+     * Start work or join the execution already in flight for the same key.
+     *
+     * @param key work key
+     * @param work starts the work if no execution is in flight
+     *
+     * @return work result
+     */
+    public CompletableFuture <V> submit(final K key, final Supplier <CompletableFuture <V>> work) {
+
+        final var future = new CompletableFuture <V>();
+        final var existing = this.inFlight.putIfAbsent(key, future);
+        if (existing != null) {
+            this.coalesced.incrementAndGet();
+            return existing;
+        }
+        this.leaders.incrementAndGet();
+        CompletableFuture <V> started;
+        try {
+            started = work.get();
+        } catch (final RuntimeException e) {
+            started = CompletableFuture.failedFuture(e);
+        }
+        started.whenComplete((result, failure) -> {
+            this.inFlight.remove(key, future);
+            if (failure == null) {
+                future.complete(result);
+            } else {
+                future.completeExceptionally(Futures.unwrap(failure));
+            }
+        });
+        return future;
+    }
+
+
+    /**
+     * Get number of executions currently in flight.
+     *
+     * @return number of in flight executions
+     */
+    public int getInFlight() {
+
+        return this.inFlight.size();
+    }
+
+
+    /**
+     * Get number of callers which started the work themselves.
+     *
+     * @return number of leaders
+     */
+    public long getLeaders() {
+
+        return this.leaders.get();
+    }
+
+
+    /**
+     * Get number of callers which shared the result of a leader instead of starting the work.
+     *
+     * @return number of coalesced callers
+     */
+    public long getCoalesced() {
+
+        return this.coalesced.get();
+    }
+
+}
@@ -0,0 +1,200 @@
+/* ========================================================================
+ * PlantUML : a free UML diagram generator
+ * ========================================================================
+ *
+ * Project Info:  https://plantuml.com
+ *
+ * This file is part of PlantUML.
+ *
+ * PlantUML is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PlantUML distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ */
+package jp.livlog.plantuml.servlet.utility;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.util.Locale;
+
+/**
+ * Utility class to find the {@code @start...}/{@code @end...} blocks of textual diagram sources embedded in
+ * arbitrary text like HTML or Markdown pages, line by line and without parsing them.
+ */
+public abstract class UmlBlocks {
+
+    /**
+     * Extract all diagram blocks of a text, dropping everything outside of them, which PlantUML
+     * ignores anyway.
+     *
+     * @param reader text to scan
+     *
+     * @return diagram blocks separated by new lines; `null` if the text contains no block
+     *
+     * @throws IOException if the text could not be read
+     */
+    public static String extract(final Reader reader) throws IOException {
+
+        final var blocks = new StringBuilder();
+        final var br = new BufferedReader(reader);
+        var inside = false;
+        var found = false;
+        String line;
+        while ((line = br.readLine()) != null) {
+            final var trimmed = line.trim();
+            if (!inside && UmlBlocks.isStart(trimmed)) {
+                inside = true;
+                found = true;
+            }
+            if (inside) {
+                blocks.append(line).append('\n');
+                if (UmlBlocks.isEnd(trimmed)) {
+                    inside = false;
+                }
+            }
+        }
+        return found ? blocks.toString() : null;
+    }
+
+
+    /**
+     * Select a single diagram block, so that only this block has to be parsed.
+     * The block can only be selected if every block before it renders exactly one image, i.e. none of
+     * them is split into pages or includes other files; only then the image index equals the block index.
+     * The block is preceded by as many lines as it is preceded by in {@code uml}, so that PlantUML reports
+     * the same line numbers in error images.
+     *
+     * @param uml textual diagram source containing one or more blocks
+     * @param idx image index
+     *
+     * @return diagram block which renders image {@code idx} as its first image; `null` if it can not be
+     *         determined without parsing the preceding blocks
+     */
+    public static String select(final String uml, final int idx) {
+
+        if (idx < 0) {
+            return null;
+        }
+        try (var br = new BufferedReader(new StringReader(uml))) {
+            final var block = new StringBuilder();
+            var inside = false;
+            var current = -1;
+            var lineNumber = 0;
+            String line;
+            while ((line = br.readLine()) != null) {
+                lineNumber++;
+                final var trimmed = line.trim();
+                if (!inside) {
+                    if (!UmlBlocks.isStart(trimmed)) {
+                        continue;
+                    }
+                    inside = true;
+                    current++;
+                    if (current == idx) {
+                        UmlBlocks.pad(block, lineNumber - 1);
+                    }
+                } else if (current < idx && UmlBlocks.isPaging(trimmed)) {
+                    return null;
+                }
+                if (current == idx) {
+                    block.append(line).append('\n');
+                }
+                if (UmlBlocks.isEnd(trimmed)) {
+                    inside = false;
+                    if (current == idx) {
+                        return block.toString();
+                    }
+                }
+            }
+            return null;
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+
+    /**
+     * Append lines in front of a block which PlantUML ignores.
+     * The first one is a comment instead of a blank line, so the padding is never taken for surrounding whitespace.
+     *
+     * @param block block to pad
+     * @param lines number of lines
+     */
+    private static void pad(final StringBuilder block, final int lines) {
+
+        if (lines > 0) {
+            block.append('\'');
+        }
+        for (var i = 0; i < lines; i++) {
+            block.append('\n');
+        }
+    }
+
+
+    /**
+     * Get the kind of the first diagram block, i.e. the keyword following {@code @start}.
+     *
+     * @param uml textual diagram source
+     *
+     * @return kind of diagram, e.g. "uml" or "mindmap"; `null` if the source contains no block
+     */
+    public static String getKind(final String uml) {
+
+        for (final var line : (Iterable <String>) uml.lines()::iterator) {
+            final var trimmed = line.trim();
+            if (UmlBlocks.isStart(trimmed)) {
+                var end = "@start".length();
+                while (end < trimmed.length() && Character.isLetterOrDigit(trimmed.charAt(end))) {
+                    end++;
+                }
+                return trimmed.substring("@start".length(), end).toLowerCase(Locale.ROOT);
+            }
+        }
+        return null;
+    }
+
+
+    private static boolean isStart(final String trimmed) {
+
+        return trimmed.startsWith("@start");
+    }
+
+
+    private static boolean isEnd(final String trimmed) {
+
+        return trimmed.startsWith("@end");
+    }
+
+
+    /**
+     * May the line split the diagram into several images?
+     * Besides the paging commands this includes every line mentioning {@code newpage}, e.g. in a macro,
+     * and includes of other files, which can contain paging commands.
+     *
+     * @param trimmed trimmed source line
+     *
+     * @return true if the diagram may render more than one image; otherwise false
+     */
+    private static boolean isPaging(final String trimmed) {
+
+        final var lower = trimmed.toLowerCase(Locale.ROOT);
+        return lower.contains("newpage")
+                || lower.matches("^page\\s+\\d+\\s*x\\s*\\d+.*")
+                || lower.startsWith("!include")
+                || lower.startsWith("!import");
+    }
+
+}
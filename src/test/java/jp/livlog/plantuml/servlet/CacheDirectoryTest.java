@@ -0,0 +1,49 @@
+package jp.livlog.plantuml.servlet;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class CacheDirectoryTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void loadListsEntriesOldestFirst() throws IOException {
+
+        final var newer = Files.writeString(this.directory.resolve("b.render"), "b");
+        final var older = Files.writeString(this.directory.resolve("a.render"), "a");
+        Files.setLastModifiedTime(older, FileTime.fromMillis(1000));
+        Files.setLastModifiedTime(newer, FileTime.fromMillis(2000));
+        Files.writeString(this.directory.resolve("c.puml"), "c");
+
+        assertThat(CacheDirectory.load(this.directory, ".render")).containsExactly(older, newer);
+    }
+
+
+    @Test
+    void loadRemovesOnlyTheInterruptedWritesOfItsOwnStore() throws IOException {
+
+        final var own = CacheDirectory.createTempFile(this.directory, "a.render", ".render");
+        final var other = CacheDirectory.createTempFile(this.directory, "b", ".puml");
+
+        assertThat(CacheDirectory.load(this.directory, ".render")).isEmpty();
+        assertThat(own).doesNotExist();
+        assertThat(other).exists();
+    }
+
+
+    @Test
+    void unsetDirectoryDisablesTheStore() {
+
+        assertThat(CacheDirectory.get("PLANTUML_TEST_UNSET_DIRECTORY")).isNull();
+    }
+
+}
@@ -0,0 +1,122 @@
+package jp.livlog.plantuml.servlet;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.UUID;
+
+import org.junit.jupiter.api.Test;
+
+import net.sourceforge.plantuml.FileFormat;
+import net.sourceforge.plantuml.SourceStringReader;
+
+/**
+ * Runs with PLANTUML_DISK_CACHE_DIR set by the build.
+ */
+class DiskRenderCacheTest {
+
+    @Test
+    void storedDiagramsAreReadBackWithTheirHeaders() throws Exception {
+
+        final var key = DiskRenderCacheTest.key();
+        final var rendered = DiskRenderCacheTest.render();
+        DiskRenderCache.put(key, rendered);
+
+        final var stored = DiskRenderCacheTest.awaitStored(key);
+        assertThat(stored.getData()).isNull();
+        assertThat(stored.getFile()).exists();
+        assertThat(stored.getStatus()).isEqualTo(rendered.getStatus());
+        assertThat(stored.getEtag()).isEqualTo(rendered.getEtag());
+        assertThat(stored.getDescription()).isEqualTo(rendered.getDescription());
+        assertThat(stored.getCMap()).isEqualTo("<map/>");
+        assertThat(DiskRenderCacheTest.body(stored, false)).isEqualTo("image");
+        assertThat(DiskRenderCacheTest.body(stored, true)).isEqualTo("gzip");
+        // a body can be written again
+        assertThat(DiskRenderCacheTest.body(stored, false)).isEqualTo("image");
+    }
+
+
+    @Test
+    void truncatedFilesAreDroppedInsteadOfServed() throws Exception {
+
+        final var key = DiskRenderCacheTest.key();
+        DiskRenderCache.put(key, DiskRenderCacheTest.render());
+        final var file = DiskRenderCacheTest.awaitStored(key).getFile();
+        try (var channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 1);
+        }
+
+        assertThat(DiskRenderCache.get(key)).isNull();
+        assertThat(file).doesNotExist();
+    }
+
+
+    @Test
+    void unknownDiagramsAreMisses() {
+
+        assertThat(DiskRenderCache.isEnabled()).isTrue();
+        assertThat(DiskRenderCache.get(DiskRenderCacheTest.key())).isNull();
+    }
+
+
+    /**
+     * Create the key of a diagram no earlier test run stored.
+     *
+     * @return render key
+     */
+    private static RenderKey key() {
+
+        return new RenderKey("@startuml\n' " + UUID.randomUUID() + "\nAlice -> Bob\n@enduml\n", 0, FileFormat.PNG, "test");
+    }
+
+
+    private static RenderedDiagram render() {
+
+        final var block = new SourceStringReader("@startuml\nAlice -> Bob\n@enduml\n").getBlocks().get(0);
+        return RenderedDiagram.of(
+                block,
+                "image".getBytes(StandardCharsets.UTF_8),
+                true,
+                "<map/>",
+                "gzip".getBytes(StandardCharsets.UTF_8));
+    }
+
+
+    /**
+     * Wait until the background writer stored a diagram.
+     *
+     * @param key render key
+     *
+     * @return stored diagram
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private static RenderedDiagram awaitStored(final RenderKey key) throws InterruptedException {
+
+        for (var i = 0; i < 500; i++) {
+            final var stored = DiskRenderCache.get(key);
+            if (stored != null) {
+                return stored;
+            }
+            Thread.sleep(10);
+        }
+        throw new AssertionError("Diagram was not stored");
+    }
+
+
+    private static String body(final RenderedDiagram rendered, final boolean gzip) throws IOException {
+
+        final var out = new ByteArrayOutputStream();
+        if (gzip) {
+            rendered.writeGzipTo(out);
+        } else {
+            rendered.writeTo(out);
+        }
+        return out.toString(StandardCharsets.UTF_8);
+    }
+
+}
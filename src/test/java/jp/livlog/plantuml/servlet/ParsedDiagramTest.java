@@ -0,0 +1,49 @@
+package jp.livlog.plantuml.servlet;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.jupiter.api.Test;
+
+class ParsedDiagramTest {
+
+    @Test
+    void sourcesWithoutBlockAreWrappedWithoutParsingThemTwice() {
+
+        final var before = ParsedDiagramTest.doubleParses();
+        final var parsed = ParsedDiagram.parse("Alice -> Bob : wrapped\n");
+
+        assertThat(parsed.isEmpty()).isFalse();
+        assertThat(parsed.getNbImages()).containsExactly(1);
+        assertThat(ParsedDiagramTest.doubleParses()).isEqualTo(before);
+    }
+
+
+    @Test
+    void sourcesWithBlocksAreParsedOnce() {
+
+        final var before = ParsedDiagramTest.doubleParses();
+        final var parsed = ParsedDiagram.parse("@startuml\nAlice -> Bob : first\n@enduml\n@startmindmap\n* root\n@endmindmap\n");
+
+        assertThat(parsed.getNbImages()).containsExactly(1, 1);
+        assertThat(ParsedDiagramTest.doubleParses()).isEqualTo(before);
+    }
+
+
+    @Test
+    void leadingBlankLinesCountForTheErrorLines() {
+
+        final var uml = "@startuml\nAlice -> Bob\nthis is no diagram (\n@enduml\n";
+        final var errors = ParsedDiagram.parse(uml).getErrors();
+        final var indented = ParsedDiagram.parse("\n\n" + uml).getErrors();
+
+        assertThat(errors).isNotEmpty();
+        assertThat(indented.get(0).getLine()).isEqualTo(errors.get(0).getLine() + 2);
+    }
+
+
+    private static long doubleParses() {
+
+        return ParsedDiagram.getStatistics().getLong("doubleParses", -1);
+    }
+
+}
@@ -0,0 +1,49 @@
+package jp.livlog.plantuml.servlet;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.jupiter.api.Test;
+
+import net.sourceforge.plantuml.FileFormat;
+
+class RenderKeyTest {
+
+    private static final String UML = "@startuml\nAlice -> Bob\n@enduml\n";
+
+    @Test
+    void keysOfTheSameRenderAreEqual() {
+
+        final var key = new RenderKey(RenderKeyTest.UML, 0, FileFormat.PNG, "config");
+        final var same = new RenderKey(RenderKeyTest.UML, 0, FileFormat.PNG, "config");
+
+        assertThat(key).isEqualTo(same).hasSameHashCodeAs(same);
+        assertThat(key.getSourceHash()).isEqualTo(RenderKey.hash(RenderKeyTest.UML));
+    }
+
+
+    @Test
+    void everyComponentDistinguishesKeys() {
+
+        final var key = new RenderKey(RenderKeyTest.UML, 0, FileFormat.PNG, "config");
+
+        assertThat(key).isNotEqualTo(new RenderKey(RenderKeyTest.UML + "Bob -> Alice\n", 0, FileFormat.PNG, "config"));
+        assertThat(key).isNotEqualTo(new RenderKey(RenderKeyTest.UML, 1, FileFormat.PNG, "config"));
+        assertThat(key).isNotEqualTo(new RenderKey(RenderKeyTest.UML, 0, FileFormat.SVG, "config"));
+        assertThat(key).isNotEqualTo(new RenderKey(RenderKeyTest.UML, 0, FileFormat.PNG, "other config"));
+    }
+
+
+    @Test
+    void hashIsLowerCaseHexSha256() {
+
+        assertThat(RenderKey.hash("abc")).isEqualTo("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad");
+    }
+
+
+    @Test
+    void diagramsDependingOnTheDateAreNotCacheable() {
+
+        assertThat(RenderKey.of("@startuml\n!$a = %date()\n@enduml", 0, FileFormat.PNG)).isNull();
+    }
+
+}
@@ -0,0 +1,202 @@
+package jp.livlog.plantuml.servlet.utility;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class BoundedExecutorTest {
+
+    /**
+     * Keeps the workers of a test busy until it is released.
+     */
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    @AfterEach
+    void releaseWorkers() {
+
+        this.release.countDown();
+    }
+
+
+    @Test
+    void runsWorkOnItsWorkers() throws Exception {
+
+        final var executor = new BoundedExecutor("test-run", 1, 1, 0);
+
+        assertThat(executor.submit(() -> Thread.currentThread().getName()).get()).isEqualTo("test-run-1");
+        assertThat(executor.execute(() -> 42)).isEqualTo(42);
+        assertThat(executor.getAccepted()).isEqualTo(2);
+    }
+
+
+    @Test
+    void failuresOfTheWorkAreReportedAsThrown() {
+
+        final var executor = new BoundedExecutor("test-failure", 1, 1, 0);
+
+        assertThatThrownBy(() -> executor.execute(() -> {
+            throw new IOException("broken");
+        })).isInstanceOf(IOException.class).hasMessage("broken");
+    }
+
+
+    @Test
+    void rejectsWorkIfTheQueueIsFull() throws Exception {
+
+        final var executor = new BoundedExecutor("test-full", 1, 1, 0);
+        final var running = this.block(executor);
+        executor.submit(() -> null);
+
+        assertThatThrownBy(() -> executor.submit(() -> null).get())
+                .isInstanceOf(ExecutionException.class)
+                .hasCauseInstanceOf(ServiceUnavailableException.class);
+        assertThat(executor.getRejected()).isEqualTo(1);
+        assertThat(running).isNotDone();
+    }
+
+
+    @Test
+    void expiresWorkWaitingLongerThanTheMaximumQueueWait() throws Exception {
+
+        final var executor = new BoundedExecutor("test-expire", 1, 4, 50);
+        this.block(executor);
+        final var waiting = executor.submit(() -> "never");
+
+        assertThatThrownBy(() -> waiting.get(5, TimeUnit.SECONDS))
+                .isInstanceOf(ExecutionException.class)
+                .hasCauseInstanceOf(ServiceUnavailableException.class);
+        assertThat(executor.getExpired()).isEqualTo(1);
+        assertThat(executor.getQueueDepth()).isZero();
+    }
+
+
+    @Test
+    void abandonsWorkExceedingItsDeadline() throws Exception {
+
+        final var executor = new BoundedExecutor("test-deadline", 1, 1, 0);
+        final var interrupted = new CountDownLatch(1);
+        final var slow = executor.submit(() -> {
+            try {
+                Thread.sleep(10000);
+            } catch (final InterruptedException e) {
+                interrupted.countDown();
+            }
+            return "late";
+        }, 50);
+
+        assertThatThrownBy(() -> slow.get(5, TimeUnit.SECONDS))
+                .isInstanceOf(ExecutionException.class)
+                .hasCauseInstanceOf(DeadlineExceededException.class);
+        assertThat(interrupted.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(executor.getAbandoned()).isEqualTo(1);
+        // the interrupt does not leak into the next work of the worker
+        assertThat(executor.execute(() -> Thread.currentThread().isInterrupted())).isFalse();
+    }
+
+
+    @Test
+    void runsWorkSubmittedByRunningWorkDirectly() throws Exception {
+
+        final var executor = new BoundedExecutor("test-nested", 1, 1, 0);
+
+        // with a single worker, queuing the nested work would wait for itself
+        final var outer = executor.submit(() -> {
+            final var nested = executor.submit(() -> Thread.currentThread().getName());
+            assertThat(nested).isDone();
+            return Futures.await(nested);
+        });
+
+        assertThat(outer.get(5, TimeUnit.SECONDS)).isEqualTo("test-nested-1");
+        assertThat(executor.getAccepted()).isEqualTo(1);
+    }
+
+
+    @Test
+    void queuesWorkSubmittedByDependentStagesWithItsOwnDeadline() {
+
+        final var executor = new BoundedExecutor("test-dependent", 1, 1, 0);
+
+        // run inline, the dependent work would not be bounded by its deadline and return "late"
+        final var dependent = executor.submit(() -> "first").thenCompose(first -> executor.submit(() -> {
+            try {
+                Thread.sleep(10000);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return "late";
+        }, 50));
+
+        assertThatThrownBy(() -> dependent.get(5, TimeUnit.SECONDS))
+                .isInstanceOf(ExecutionException.class)
+                .hasCauseInstanceOf(DeadlineExceededException.class);
+        assertThat(executor.getAccepted()).isEqualTo(2);
+    }
+
+
+    @Test
+    void resultsAreCompletedOnlyAfterTheDeadlineIsDisarmed() throws Exception {
+
+        final var executor = new BoundedExecutor("test-complete", 1, 1, 0);
+
+        // a dependent stage running on the worker must not be interrupted by the deadline of the finished work
+        final var work = executor.submit(() -> {
+            this.awaitRelease();
+            return "done";
+        }, 200);
+        final var dependent = work.thenApply(done -> {
+            try {
+                Thread.sleep(400);
+                return !Thread.currentThread().isInterrupted();
+            } catch (final InterruptedException e) {
+                return false;
+            }
+        });
+
+        // the stage is attached before the work finishes, so it runs on the worker
+        this.release.countDown();
+        assertThat(dependent.get(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(executor.getAbandoned()).isZero();
+    }
+
+
+    /**
+     * Occupy the only worker of an executor until the test ends.
+     *
+     * @param executor executor with a single worker
+     *
+     * @return result of the blocking work
+     *
+     * @throws InterruptedException if interrupted while waiting for the worker to start
+     */
+    private CompletableFuture <Object> block(final BoundedExecutor executor) throws InterruptedException {
+
+        final var started = new CountDownLatch(1);
+        final var running = executor.submit(() -> {
+            started.countDown();
+            this.awaitRelease();
+            return null;
+        });
+        assertThat(started.await(5, TimeUnit.SECONDS)).isTrue();
+        return running;
+    }
+
+
+    private void awaitRelease() throws InterruptedIOException {
+
+        try {
+            this.release.await();
+        } catch (final InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+    }
+
+}
@@ -0,0 +1,126 @@
+package jp.livlog.plantuml.servlet.utility;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class LruCacheTest {
+
+    @Test
+    void evictsLeastRecentlyUsedEntriesBeyondMaxWeight() {
+
+        final var cache = new LruCache <String, String>(10, String::length);
+        cache.put("a", "aaaa");
+        cache.put("b", "bbbb");
+        // touch "a", so "b" is the least recently used entry
+        assertThat(cache.get("a")).isEqualTo("aaaa");
+        cache.put("c", "cccc");
+
+        assertThat(cache.get("b")).isNull();
+        assertThat(cache.get("a")).isEqualTo("aaaa");
+        assertThat(cache.get("c")).isEqualTo("cccc");
+        assertThat(cache.weight()).isEqualTo(8);
+        assertThat(cache.size()).isEqualTo(2);
+        assertThat(cache.getEvictions()).isEqualTo(1);
+    }
+
+
+    @Test
+    void replacingAnEntryReplacesItsWeight() {
+
+        final var cache = new LruCache <String, String>(10, String::length);
+        cache.put("a", "aaaa");
+        cache.put("a", "aa");
+
+        assertThat(cache.weight()).isEqualTo(2);
+        assertThat(cache.size()).isEqualTo(1);
+    }
+
+
+    @Test
+    void skipsValuesHeavierThanTheWholeCache() {
+
+        final var cache = new LruCache <String, String>(4, String::length);
+        cache.put("a", "aaaa");
+        cache.put("b", "bbbbb");
+
+        assertThat(cache.get("b")).isNull();
+        assertThat(cache.get("a")).isEqualTo("aaaa");
+        assertThat(cache.getEvictions()).isZero();
+    }
+
+
+    @Test
+    void disabledCacheStoresNothing() {
+
+        final var cache = new LruCache <String, String>(0, String::length);
+        cache.put("a", "a");
+
+        assertThat(cache.isEnabled()).isFalse();
+        assertThat(cache.get("a")).isNull();
+        assertThat(cache.size()).isZero();
+    }
+
+
+    @Test
+    void expiredEntriesAreNotReturned() throws InterruptedException {
+
+        final var cache = new LruCache <String, String>(10, String::length, 20);
+        cache.put("a", "a");
+        assertThat(cache.containsKey("a")).isTrue();
+        Thread.sleep(50);
+
+        assertThat(cache.containsKey("a")).isFalse();
+        assertThat(cache.get("a")).isNull();
+        assertThat(cache.getExpired()).isEqualTo(1);
+        assertThat(cache.weight()).isZero();
+    }
+
+
+    @Test
+    void reportsEvictedEntriesToTheListener() {
+
+        final List <String> evicted = new ArrayList <>();
+        final var cache = new LruCache <String, String>(2, String::length, 0, (key, value) -> evicted.add(key + "=" + value));
+        cache.put("a", "a");
+        cache.put("b", "b");
+        cache.put("c", "c");
+        // removals are no evictions
+        cache.remove("b");
+
+        assertThat(evicted).containsExactly("a=a");
+    }
+
+
+    @Test
+    void countsHitsAndMisses() {
+
+        final var cache = new LruCache <String, String>(10, String::length);
+        cache.put("a", "a");
+        cache.get("a");
+        cache.get("b");
+        // containsKey counts neither
+        cache.containsKey("a");
+
+        assertThat(cache.getHits()).isEqualTo(1);
+        assertThat(cache.getMisses()).isEqualTo(1);
+    }
+
+
+    @Test
+    void removeIfRemovesMatchingKeysAndTheirWeight() {
+
+        final var cache = new LruCache <String, String>(10, String::length);
+        cache.put("x/1", "aa");
+        cache.put("y/1", "bbb");
+        cache.put("x/2", "c");
+
+        assertThat(cache.removeIf(key -> key.startsWith("x/"))).isEqualTo(2);
+        assertThat(cache.size()).isEqualTo(1);
+        assertThat(cache.weight()).isEqualTo(3);
+    }
+
+}
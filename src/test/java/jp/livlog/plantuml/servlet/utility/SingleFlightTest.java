@@ -0,0 +1,93 @@
+package jp.livlog.plantuml.servlet.utility;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+class SingleFlightTest {
+
+    @Test
+    void concurrentCallersShareOneExecution() throws Exception {
+
+        final var flight = new SingleFlight <String, String>();
+        final var started = new AtomicInteger();
+        final var work = new CompletableFuture <String>();
+
+        final var leader = flight.submit("key", () -> {
+            started.incrementAndGet();
+            return work;
+        });
+        final var follower = flight.submit("key", () -> {
+            started.incrementAndGet();
+            return CompletableFuture.completedFuture("other");
+        });
+        assertThat(flight.getInFlight()).isEqualTo(1);
+        work.complete("result");
+
+        assertThat(leader.get()).isEqualTo("result");
+        assertThat(follower.get()).isEqualTo("result");
+        assertThat(started).hasValue(1);
+        assertThat(flight.getLeaders()).isEqualTo(1);
+        assertThat(flight.getCoalesced()).isEqualTo(1);
+    }
+
+
+    @Test
+    void completedExecutionsAreNotShared() throws Exception {
+
+        final var flight = new SingleFlight <String, String>();
+        flight.submit("key", () -> CompletableFuture.completedFuture("first")).get();
+
+        assertThat(flight.getInFlight()).isZero();
+        assertThat(flight.submit("key", () -> CompletableFuture.completedFuture("second")).get()).isEqualTo("second");
+        assertThat(flight.getLeaders()).isEqualTo(2);
+    }
+
+
+    @Test
+    void differentKeysRunSeparately() throws Exception {
+
+        final var flight = new SingleFlight <String, String>();
+        final var first = flight.submit("a", CompletableFuture::new);
+        final var second = flight.submit("b", () -> CompletableFuture.completedFuture("b"));
+
+        assertThat(second.get()).isEqualTo("b");
+        assertThat(first).isNotDone();
+        assertThat(flight.getCoalesced()).isZero();
+    }
+
+
+    @Test
+    void failuresAreSharedUnwrappedAndNotKept() {
+
+        final var flight = new SingleFlight <String, String>();
+        final var work = new CompletableFuture <String>();
+        final var leader = flight.submit("key", () -> work);
+        final var follower = flight.submit("key", () -> work);
+        work.completeExceptionally(new IOException("broken"));
+
+        assertThatThrownBy(leader::get).isInstanceOf(ExecutionException.class).hasCauseInstanceOf(IOException.class);
+        assertThatThrownBy(follower::get).isInstanceOf(ExecutionException.class).hasCauseInstanceOf(IOException.class);
+        assertThat(flight.getInFlight()).isZero();
+    }
+
+
+    @Test
+    void workThrowingWhileStartingFailsTheResult() {
+
+        final var flight = new SingleFlight <String, String>();
+        final var result = flight.submit("key", () -> {
+            throw new IllegalStateException("not started");
+        });
+
+        assertThatThrownBy(result::get).hasCauseInstanceOf(IllegalStateException.class);
+        assertThat(flight.getInFlight()).isZero();
+    }
+
+}
@@ -0,0 +1,88 @@
+package jp.livlog.plantuml.servlet.utility;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import org.junit.jupiter.api.Test;
+
+class UmlBlocksTest {
+
+    private static final String PAGE = """
+            <html>
+            <pre>
+            @startuml
+            Alice -> Bob
+            @enduml
+            </pre>
+            <p>text</p>
+              @startmindmap
+              * root
+              @endmindmap
+            </html>
+            """;
+
+    @Test
+    void extractKeepsOnlyTheBlocks() throws IOException {
+
+        assertThat(UmlBlocks.extract(new StringReader(UmlBlocksTest.PAGE))).isEqualTo("""
+                @startuml
+                Alice -> Bob
+                @enduml
+                  @startmindmap
+                  * root
+                  @endmindmap
+                """);
+    }
+
+
+    @Test
+    void extractFindsNothingInPlainText() throws IOException {
+
+        assertThat(UmlBlocks.extract(new StringReader("<p>no diagram</p>\n"))).isNull();
+    }
+
+
+    @Test
+    void selectKeepsTheLineNumbersOfTheBlock() {
+
+        final var block = UmlBlocks.select(UmlBlocksTest.PAGE, 1);
+
+        assertThat(block).endsWith("  @startmindmap\n  * root\n  @endmindmap\n");
+        // the block starts on line 8 of the page, as it does in the selected block
+        assertThat(block.lines().toList().indexOf("  @startmindmap")).isEqualTo(7);
+        assertThat(UmlBlocks.select(UmlBlocksTest.PAGE, 0)).isEqualTo("'\n\n@startuml\nAlice -> Bob\n@enduml\n");
+    }
+
+
+    @Test
+    void selectGivesUpIfAPrecedingBlockMayRenderSeveralImages() {
+
+        final var paged = "@startuml\nAlice -> Bob\nnewpage\nBob -> Alice\n@enduml\n@startuml\nA -> B\n@enduml\n";
+        final var included = "@startuml\n!include other.puml\n@enduml\n@startuml\nA -> B\n@enduml\n";
+
+        assertThat(UmlBlocks.select(paged, 1)).isNull();
+        assertThat(UmlBlocks.select(included, 1)).isNull();
+        // paging inside the selected block itself does not matter
+        assertThat(UmlBlocks.select(paged, 0)).isEqualTo(paged.substring(0, paged.indexOf("@enduml") + 8));
+    }
+
+
+    @Test
+    void selectFindsNoBlockBeyondTheLastOne() {
+
+        assertThat(UmlBlocks.select(UmlBlocksTest.PAGE, 2)).isNull();
+        assertThat(UmlBlocks.select(UmlBlocksTest.PAGE, -1)).isNull();
+    }
+
+
+    @Test
+    void getKindNamesTheFirstBlock() {
+
+        assertThat(UmlBlocks.getKind(UmlBlocksTest.PAGE)).isEqualTo("uml");
+        assertThat(UmlBlocks.getKind("  @startMindMap(id=x)\n* root\n@endmindmap\n")).isEqualTo("mindmap");
+        assertThat(UmlBlocks.getKind("Alice -> Bob\n")).isNull();
+    }
+
+}